@@ -0,0 +1,50 @@
+package com.example.turnserver.bench;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The HMAC-SHA1 and MD5 helpers as HmacUtils had them before engines were kept per thread:
+ * a new Mac or MessageDigest from the provider on every call. Kept only as the baseline
+ * for {@link HmacBenchmark}.
+ */
+final class LegacyHmacUtils {
+    
+    private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+    private static final String MD5_ALGORITHM = "MD5";
+    
+    private LegacyHmacUtils() {
+    }
+    
+    /**
+     * Calculate HMAC-SHA1
+     */
+    static byte[] calculateHmacSha1(byte[] data, byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
+            SecretKeySpec secretKeySpec = new SecretKeySpec(key, HMAC_SHA1_ALGORITHM);
+            mac.init(secretKeySpec);
+            return mac.doFinal(data);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new RuntimeException("Error calculating HMAC-SHA1", e);
+        }
+    }
+    
+    /**
+     * Calculate MD5 hash for TURN long-term credentials
+     * MD5(username:realm:password)
+     */
+    static byte[] calculateMd5Hash(String username, String realm, String password) {
+        try {
+            String input = username + ":" + realm + ":" + password;
+            MessageDigest md = MessageDigest.getInstance(MD5_ALGORITHM);
+            return md.digest(input.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 algorithm not available", e);
+        }
+    }
+}
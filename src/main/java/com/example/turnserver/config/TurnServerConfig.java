@@ -1,10 +1,18 @@
 package com.example.turnserver.config;
 
+import com.example.turnserver.handler.ChannelDataHandler;
+import com.example.turnserver.handler.DatagramBatcher;
 import com.example.turnserver.handler.TurnServerHandler;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.nio.NioDatagramChannel;
@@ -18,6 +26,8 @@ import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.context.event.EventListener;
 
 import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Configuration for the TURN server Netty components
@@ -36,38 +46,88 @@ public class TurnServerConfig {
     @Value("${turn.server.external-ip:127.0.0.1}")
     private String externalIp;
     
+    // auto, epoll or nio
+    @Value("${turn.server.transport:auto}")
+    private String transport;
+    
+    // Number of event loops, and of SO_REUSEPORT listener sockets with epoll; 0 means one per core
+    @Value("${turn.server.listener-threads:0}")
+    private int listenerThreads;
+    
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    private boolean epollEnabled;
+    private int listenerCount;
+    private final List<Channel> serverChannels = new ArrayList<>();
+    
+    @Autowired
+    private ChannelDataHandler channelDataHandler;
     
     @Autowired
     private TurnServerHandler turnServerHandler;
     
+    @Autowired
+    private DatagramBatcher datagramBatcher;
+    
     /**
-     * TURN/STUN server bootstrap configuration
+     * TURN/STUN server bootstrap configuration.
+     * With epoll every event loop gets its own listener socket on the TURN port
+     * through SO_REUSEPORT, so the kernel spreads client flows over all cores.
+     * NIO cannot share the port and serves it from a single socket.
      */
     @Bean
     public Bootstrap turnServerBootstrap() {
-        logger.info("Configuring TURN/STUN server bootstrap");
+        epollEnabled = useEpoll();
+        int threads = listenerThreads > 0 ? listenerThreads : Runtime.getRuntime().availableProcessors();
+        listenerCount = epollEnabled ? threads : 1;
+        logger.info("Configuring TURN/STUN server bootstrap: transport={}, event loops={}, listener sockets={}",
+                    epollEnabled ? "epoll" : "nio", threads, listenerCount);
         
         bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        workerGroup = epollEnabled ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
         
+        Class<? extends DatagramChannel> channelClass = epollEnabled ? EpollDatagramChannel.class : NioDatagramChannel.class;
         Bootstrap bootstrap = new Bootstrap();
         bootstrap.group(workerGroup)
-                .channel(NioDatagramChannel.class)
+                .channel(channelClass)
                 .option(ChannelOption.SO_BROADCAST, true)
                 .option(ChannelOption.SO_RCVBUF, 65536)
                 .option(ChannelOption.SO_SNDBUF, 65536)
                 .handler(new ChannelInitializer<DatagramChannel>() {
                     @Override
                     protected void initChannel(DatagramChannel ch) throws Exception {
+                        ch.pipeline().addLast("channelDataHandler", channelDataHandler);
                         ch.pipeline().addLast("turnHandler", turnServerHandler);
                     }
                 });
         
+        if (epollEnabled) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        datagramBatcher.configure(bootstrap, channelClass);
+        
         return bootstrap;
     }
     
+    /**
+     * Resolve the configured transport, falling back to NIO when epoll is unavailable
+     */
+    private boolean useEpoll() {
+        if ("nio".equalsIgnoreCase(transport)) {
+            return false;
+        }
+        if (Epoll.isAvailable()) {
+            return true;
+        }
+        
+        if ("epoll".equalsIgnoreCase(transport)) {
+            logger.warn("Epoll transport requested but not available, falling back to NIO", Epoll.unavailabilityCause());
+        } else {
+            logger.debug("Epoll transport not available, using NIO: {}", Epoll.unavailabilityCause().toString());
+        }
+        return false;
+    }
+    
     /**
      * Start the TURN/STUN server when application context is ready
      */
@@ -77,13 +137,16 @@ public class TurnServerConfig {
             logger.info("Starting TURN/STUN server on port {} with external IP {}", turnPort, externalIp);
             
             Bootstrap bootstrap = turnServerBootstrap();
-            bootstrap.bind(turnPort).sync().addListener(future -> {
-                if (future.isSuccess()) {
-                    logger.info("TURN/STUN server started successfully on port {}", turnPort);
-                } else {
-                    logger.error("Failed to start TURN/STUN server on port {}", turnPort, future.cause());
-                }
-            });
+            
+            // Each bind registers the new socket on the next event loop of the group
+            for (int i = 0; i < listenerCount; i++) {
+                ChannelFuture bindFuture = bootstrap.bind(turnPort).sync();
+                datagramBatcher.registerListener(bindFuture.channel(), "listener-" + i);
+                serverChannels.add(bindFuture.channel());
+            }
+            
+            logger.info("TURN/STUN server started successfully on port {} with {} listener socket(s)",
+                        turnPort, serverChannels.size());
             
         } catch (Exception e) {
             logger.error("Error starting TURN/STUN server", e);
@@ -97,6 +160,11 @@ public class TurnServerConfig {
     public void shutdown() {
         logger.info("Shutting down TURN server");
         
+        for (Channel channel : serverChannels) {
+            channel.close();
+        }
+        serverChannels.clear();
+        
         if (workerGroup != null) {
             workerGroup.shutdownGracefully();
         }
@@ -121,6 +189,13 @@ public class TurnServerConfig {
         return stunPort;
     }
     
+    /**
+     * Check whether the native epoll transport is in use
+     */
+    public boolean isEpollEnabled() {
+        return epollEnabled;
+    }
+    
     /**
      * Get the configured external IP
      */
@@ -107,9 +107,12 @@ public class TurnController {
             "STUN Binding",
             "TURN Allocate",
             "TURN Refresh",
+            "TURN CreatePermission",
+            "TURN ChannelBind",
             "Authentication",
             "Message Integrity"
         });
+        config.put("relayAddresses", turnServerService.getRelayCapacity());
         
         return ResponseEntity.ok(config);
     }
@@ -125,8 +128,10 @@ public class TurnController {
         capabilities.put("stunBinding", true);
         capabilities.put("turnAllocate", true);
         capabilities.put("turnRefresh", true);
-        capabilities.put("turnChannelBind", false); // Not implemented yet
-        capabilities.put("turnPermissions", false); // Not implemented yet
+        capabilities.put("turnChannelBind", true);
+        capabilities.put("turnPermissions", true);
+        capabilities.put("evenPort", true);
+        capabilities.put("reservationToken", true);
         capabilities.put("udpTransport", true);
         capabilities.put("tcpTransport", false); // Not implemented yet
         capabilities.put("tlsTransport", false); // Not implemented yet
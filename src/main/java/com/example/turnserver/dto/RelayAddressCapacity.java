@@ -0,0 +1,94 @@
+package com.example.turnserver.dto;
+
+/**
+ * Response DTO for the port capacity of one relay address
+ */
+public class RelayAddressCapacity {
+    
+    private String address;
+    private String bindAddress;
+    private int minPort;
+    private int maxPort;
+    private int portRange;
+    private int availablePorts;
+    private int quarantinedPorts;
+    private int allocatedPorts;
+    
+    // Constructors
+    public RelayAddressCapacity() {}
+    
+    // Getters and setters
+    public String getAddress() {
+        return address;
+    }
+    
+    public void setAddress(String address) {
+        this.address = address;
+    }
+    
+    public String getBindAddress() {
+        return bindAddress;
+    }
+    
+    public void setBindAddress(String bindAddress) {
+        this.bindAddress = bindAddress;
+    }
+    
+    public int getMinPort() {
+        return minPort;
+    }
+    
+    public void setMinPort(int minPort) {
+        this.minPort = minPort;
+    }
+    
+    public int getMaxPort() {
+        return maxPort;
+    }
+    
+    public void setMaxPort(int maxPort) {
+        this.maxPort = maxPort;
+    }
+    
+    public int getPortRange() {
+        return portRange;
+    }
+    
+    public void setPortRange(int portRange) {
+        this.portRange = portRange;
+    }
+    
+    public int getAvailablePorts() {
+        return availablePorts;
+    }
+    
+    public void setAvailablePorts(int availablePorts) {
+        this.availablePorts = availablePorts;
+    }
+    
+    public int getQuarantinedPorts() {
+        return quarantinedPorts;
+    }
+    
+    public void setQuarantinedPorts(int quarantinedPorts) {
+        this.quarantinedPorts = quarantinedPorts;
+    }
+    
+    public int getAllocatedPorts() {
+        return allocatedPorts;
+    }
+    
+    public void setAllocatedPorts(int allocatedPorts) {
+        this.allocatedPorts = allocatedPorts;
+    }
+    
+    @Override
+    public String toString() {
+        return "RelayAddressCapacity{" +
+                "address='" + address + '\'' +
+                ", portRange=" + portRange +
+                ", availablePorts=" + availablePorts +
+                ", allocatedPorts=" + allocatedPorts +
+                '}';
+    }
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.example.turnserver.dto;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 /**
  * Response DTO for TURN server statistics
@@ -34,6 +35,7 @@ public class StatisticsResponse {
     private String serverVersion;
     private int configuredPortRange;
     private int availablePorts;
+    private List<RelayAddressCapacity> relayAddresses;
     
     // Performance metrics
     private double avgSessionDuration;
@@ -205,6 +207,14 @@ public class StatisticsResponse {
         this.availablePorts = availablePorts;
     }
     
+    public List<RelayAddressCapacity> getRelayAddresses() {
+        return relayAddresses;
+    }
+    
+    public void setRelayAddresses(List<RelayAddressCapacity> relayAddresses) {
+        this.relayAddresses = relayAddresses;
+    }
+    
     public double getAvgSessionDuration() {
         return avgSessionDuration;
     }
@@ -41,6 +41,7 @@ public class TurnException extends RuntimeException {
     public static final int ADDRESS_FAMILY_NOT_SUPPORTED = 440;
     public static final int WRONG_CREDENTIALS = 441;
     public static final int UNSUPPORTED_TRANSPORT_PROTOCOL = 442;
+    public static final int PEER_ADDRESS_FAMILY_MISMATCH = 443;
     public static final int ALLOCATION_QUOTA_REACHED = 486;
     public static final int ROLE_CONFLICT = 487;
     public static final int SERVER_ERROR = 500;
@@ -82,6 +83,10 @@ public class TurnException extends RuntimeException {
         return new TurnException(message, UNSUPPORTED_TRANSPORT_PROTOCOL);
     }
     
+    public static TurnException peerAddressFamilyMismatch(String message) {
+        return new TurnException(message, PEER_ADDRESS_FAMILY_MISMATCH);
+    }
+    
     public static TurnException allocationQuotaReached(String message) {
         return new TurnException(message, ALLOCATION_QUOTA_REACHED);
     }
@@ -0,0 +1,105 @@
+package com.example.turnserver.handler;
+
+import com.example.turnserver.model.RelayAllocation;
+import com.example.turnserver.service.RelayService;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.DatagramPacket;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.net.InetSocketAddress;
+
+/**
+ * First pipeline stage of the server channel: classifies datagrams by their first byte.
+ *
+ * ChannelData messages (RFC 5766 section 11.4, first two bits 01) are relayed straight to the
+ * bound peer without STUN parsing, STUN messages (first two bits 00) are passed on to
+ * {@link TurnServerHandler}, anything else is dropped. Invalid ChannelData is silently
+ * discarded, so this path never logs or throws.
+ */
+@Component
+@ChannelHandler.Sharable
+public class ChannelDataHandler extends ChannelInboundHandlerAdapter {
+    
+    private static final int CHANNEL_DATA_HEADER_LENGTH = 4;
+    
+    private final RelayService relayService;
+    private final DatagramBatcher datagramBatcher;
+    
+    @Autowired
+    public ChannelDataHandler(RelayService relayService, DatagramBatcher datagramBatcher) {
+        this.relayService = relayService;
+        this.datagramBatcher = datagramBatcher;
+    }
+    
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof DatagramPacket)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        
+        datagramBatcher.recordRead();
+        
+        DatagramPacket packet = (DatagramPacket) msg;
+        ByteBuf content = packet.content();
+        if (!content.isReadable()) {
+            packet.release();
+            return;
+        }
+        
+        int firstByte = content.getUnsignedByte(content.readerIndex());
+        switch (firstByte >>> 6) {
+            case 0:
+                // STUN message
+                ctx.fireChannelRead(msg);
+                break;
+            case 1:
+                // ChannelData message
+                try {
+                    relayChannelData(packet.sender(), content);
+                } finally {
+                    packet.release();
+                }
+                break;
+            default:
+                packet.release();
+                break;
+        }
+    }
+    
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        // Flush responses and relayed ChannelData of the whole read burst at once
+        datagramBatcher.readComplete(ctx.channel());
+        ctx.fireChannelReadComplete();
+    }
+    
+    private void relayChannelData(InetSocketAddress sender, ByteBuf content) {
+        int readerIndex = content.readerIndex();
+        if (content.readableBytes() < CHANNEL_DATA_HEADER_LENGTH) {
+            return;
+        }
+        
+        int channelNumber = content.getUnsignedShort(readerIndex);
+        int length = content.getUnsignedShort(readerIndex + 2);
+        if (length > content.readableBytes() - CHANNEL_DATA_HEADER_LENGTH) {
+            return;
+        }
+        
+        RelayAllocation relay = relayService.findByClient(sender);
+        if (relay == null) {
+            return;
+        }
+        
+        InetSocketAddress peer = relay.getChannelPeer(channelNumber);
+        if (peer == null) {
+            return;
+        }
+        
+        relayService.sendToPeer(relay, peer, content.retainedSlice(readerIndex + CHANNEL_DATA_HEADER_LENGTH, length));
+    }
+}
\ No newline at end of file
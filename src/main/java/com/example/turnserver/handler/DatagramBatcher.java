@@ -0,0 +1,317 @@
+package com.example.turnserver.handler;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.unix.SegmentedDatagramPacket;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Batched datagram I/O for the listener and relay sockets.
+ *
+ * On epoll, reads use recvmmsg: the receive buffer is sized for a whole batch of
+ * datagrams and the channel is given the maximum datagram payload size, so one
+ * syscall fills several packets. Writes are queued without flushing and flushed
+ * once per read burst, from channelReadComplete, so that the epoll transport
+ * hands every pending packet of a socket to a single sendmmsg call.
+ *
+ * With UDP offload enabled, datagrams are held until the flush instead, and runs of
+ * equal-size datagrams to the same destination leave as one segmented (UDP_SEGMENT)
+ * write. Reads use UDP_GRO; the epoll transport splits coalesced reads back into
+ * individual datagrams before they reach the pipeline.
+ *
+ * A listener socket and the relay sockets opened from it share one event loop, so
+ * the set of channels waiting for a flush is kept per event loop thread.
+ * With a batch size of 1 every write is flushed immediately, as before.
+ */
+@Component
+public class DatagramBatcher {
+    
+    private static final Logger logger = LoggerFactory.getLogger(DatagramBatcher.class);
+    
+    // Largest UDP payload, and kernel limit on segments per GSO send
+    private static final int MAX_UDP_PAYLOAD = 65507;
+    private static final int MAX_GSO_SEGMENTS = 64;
+    private static final int GRO_RECEIVE_BUFFER_SIZE = 65536;
+    
+    private static final AttributeKey<SocketMeters> SOCKET_METERS = AttributeKey.valueOf("turnSocketMeters");
+    
+    // Channels written to during the current read burst, per event loop
+    private static final FastThreadLocal<PendingFlushes> PENDING = new FastThreadLocal<PendingFlushes>() {
+        @Override
+        protected PendingFlushes initialValue() {
+            return new PendingFlushes();
+        }
+    };
+    
+    private final MeterRegistry meterRegistry;
+    
+    // Relay sockets live as long as their allocation, so they share one set of meters
+    private final SocketMeters relayMeters;
+    
+    @Value("${turn.server.io-batch-size:16}")
+    private int batchSize;
+    
+    @Value("${turn.server.max-datagram-size:2048}")
+    private int maxDatagramSize;
+    
+    @Value("${turn.server.udp-offload:false}")
+    private boolean udpOffload;
+    
+    @Autowired
+    public DatagramBatcher(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.relayMeters = new SocketMeters(meterRegistry, "relay");
+    }
+    
+    /**
+     * Check whether writes are coalesced until the end of the read burst
+     */
+    public boolean isEnabled() {
+        return batchSize > 1;
+    }
+    
+    /**
+     * Check whether GSO/GRO offload is in use
+     */
+    public boolean isOffloadEnabled() {
+        return isEnabled() && udpOffload && EpollDatagramChannel.isSegmentedDatagramPacketSupported();
+    }
+    
+    /**
+     * Enable recvmmsg, or GRO when offload is enabled, on a bootstrap of the epoll transport
+     */
+    public void configure(Bootstrap bootstrap, Class<? extends Channel> channelClass) {
+        if (!isEnabled() || !EpollDatagramChannel.class.isAssignableFrom(channelClass)) {
+            return;
+        }
+        
+        if (isOffloadEnabled()) {
+            // A GRO read returns up to 64KB of coalesced datagrams. The buffer holds exactly one,
+            // so the transport reads with recvmsg: only that path gets the segment size from the
+            // kernel and splits the read, while recvmmsg would pass coalesced datagrams on as one
+            bootstrap.option(EpollChannelOption.UDP_GRO, true)
+                    .option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, GRO_RECEIVE_BUFFER_SIZE)
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(GRO_RECEIVE_BUFFER_SIZE));
+            logger.debug("Enabled UDP GRO/GSO offload");
+            return;
+        }
+        
+        bootstrap.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, maxDatagramSize)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(maxDatagramSize * batchSize));
+        logger.debug("Enabled recvmmsg with {} datagrams of up to {} bytes per read", batchSize, maxDatagramSize);
+    }
+    
+    /**
+     * Give a listener socket its own batch size meters
+     */
+    public void registerListener(Channel channel, String socketName) {
+        channel.attr(SOCKET_METERS).set(new SocketMeters(meterRegistry, socketName));
+    }
+    
+    /**
+     * Count a datagram read from a socket. Must be called from channelRead.
+     */
+    public void recordRead() {
+        PENDING.get().reads++;
+    }
+    
+    /**
+     * Write a datagram, deferring the flush to the end of the read burst when batching is enabled
+     */
+    public void write(Channel channel, Object msg) {
+        if (!isEnabled() || !channel.isRegistered() || !channel.eventLoop().inEventLoop()) {
+            channel.writeAndFlush(msg, channel.voidPromise());
+            return;
+        }
+        
+        PendingFlushes pending = PENDING.get();
+        if (msg instanceof DatagramPacket && channel instanceof EpollDatagramChannel && isOffloadEnabled()) {
+            pending.hold(channel, (DatagramPacket) msg);
+        } else {
+            channel.write(msg, channel.voidPromise());
+        }
+        pending.add(channel);
+    }
+    
+    /**
+     * End of a read burst on a socket: records the read batch size and flushes every
+     * channel written to since the last flush. Must be called from channelReadComplete.
+     */
+    public void readComplete(Channel channel) {
+        PendingFlushes pending = PENDING.get();
+        if (pending.reads > 0) {
+            metersOf(channel).readBatch.record(pending.reads);
+            pending.reads = 0;
+        }
+        flush(pending);
+    }
+    
+    /**
+     * Flush every channel written to since the last flush. Must be called on the event loop
+     * after writes made outside a read burst, such as from a scheduled task.
+     */
+    public void flush() {
+        flush(PENDING.get());
+    }
+    
+    private void flush(PendingFlushes pending) {
+        if (pending.heldCount > 0) {
+            writeSegmented(pending);
+        }
+        
+        for (int i = 0; i < pending.size; i++) {
+            Channel target = pending.channels[i];
+            metersOf(target).writeBatch.record(pending.writes[i]);
+            target.flush();
+            pending.channels[i] = null;
+        }
+        pending.size = 0;
+    }
+    
+    /**
+     * Write the held datagrams, merging runs of equal-size datagrams from one channel to
+     * one destination into segmented writes. The order of datagrams to a destination is
+     * kept: a run ends at the first datagram to the same destination that does not fit.
+     */
+    private void writeSegmented(PendingFlushes pending) {
+        Channel[] channels = pending.heldChannels;
+        DatagramPacket[] packets = pending.heldPackets;
+        int count = pending.heldCount;
+        
+        for (int i = 0; i < count; i++) {
+            DatagramPacket first = packets[i];
+            if (first == null) {
+                continue;
+            }
+            packets[i] = null;
+            
+            Channel channel = channels[i];
+            InetSocketAddress recipient = first.recipient();
+            int segmentSize = first.content().readableBytes();
+            CompositeByteBuf segments = null;
+            int segmentCount = 1;
+            int totalSize = segmentSize;
+            
+            for (int j = i + 1; j < count && segmentCount < MAX_GSO_SEGMENTS; j++) {
+                DatagramPacket next = packets[j];
+                if (next == null || channels[j] != channel || !recipient.equals(next.recipient())) {
+                    continue;
+                }
+                
+                int size = next.content().readableBytes();
+                if (size > segmentSize || size == 0 || totalSize + size > MAX_UDP_PAYLOAD) {
+                    break;
+                }
+                
+                if (segments == null) {
+                    segments = channel.alloc().compositeDirectBuffer(MAX_GSO_SEGMENTS);
+                    segments.addComponent(true, first.content());
+                }
+                segments.addComponent(true, next.content());
+                packets[j] = null;
+                segmentCount++;
+                totalSize += size;
+                
+                // Only the last segment may be shorter
+                if (size < segmentSize) {
+                    break;
+                }
+            }
+            
+            if (segments == null) {
+                channel.write(first, channel.voidPromise());
+            } else {
+                channel.write(new SegmentedDatagramPacket(segments, segmentSize, recipient), channel.voidPromise());
+            }
+        }
+        
+        Arrays.fill(channels, 0, count, null);
+        pending.heldCount = 0;
+    }
+    
+    private SocketMeters metersOf(Channel channel) {
+        SocketMeters meters = channel.attr(SOCKET_METERS).get();
+        return meters != null ? meters : relayMeters;
+    }
+    
+    /**
+     * Read and write batch size distributions of a socket
+     */
+    private static final class SocketMeters {
+        
+        final DistributionSummary readBatch;
+        final DistributionSummary writeBatch;
+        
+        SocketMeters(MeterRegistry registry, String socketName) {
+            this.readBatch = DistributionSummary.builder("turn.io.read.batch")
+                    .description("Datagrams read per read burst")
+                    .tag("socket", socketName)
+                    .register(registry);
+            this.writeBatch = DistributionSummary.builder("turn.io.write.batch")
+                    .description("Datagrams written per flush")
+                    .tag("socket", socketName)
+                    .register(registry);
+        }
+    }
+    
+    /**
+     * Channels with unflushed writes and the number of datagrams queued on each,
+     * plus the datagrams held back for segmentation offload.
+     * A burst only touches a handful of channels, so a linear scan beats hashing.
+     */
+    private static final class PendingFlushes {
+        
+        Channel[] channels = new Channel[8];
+        int[] writes = new int[8];
+        int size;
+        int reads;
+        
+        Channel[] heldChannels = new Channel[16];
+        DatagramPacket[] heldPackets = new DatagramPacket[16];
+        int heldCount;
+        
+        void hold(Channel channel, DatagramPacket packet) {
+            if (heldCount == heldPackets.length) {
+                heldChannels = Arrays.copyOf(heldChannels, heldCount * 2);
+                heldPackets = Arrays.copyOf(heldPackets, heldCount * 2);
+            }
+            heldChannels[heldCount] = channel;
+            heldPackets[heldCount] = packet;
+            heldCount++;
+        }
+        
+        void add(Channel channel) {
+            for (int i = 0; i < size; i++) {
+                if (channels[i] == channel) {
+                    writes[i]++;
+                    return;
+                }
+            }
+            
+            if (size == channels.length) {
+                channels = Arrays.copyOf(channels, size * 2);
+                writes = Arrays.copyOf(writes, size * 2);
+            }
+            channels[size] = channel;
+            writes[size] = 1;
+            size++;
+        }
+    }
+}
\ No newline at end of file
@@ -1,63 +1,74 @@
 package com.example.turnserver.handler;
 
+import com.example.turnserver.model.ChannelBindingTable;
+import com.example.turnserver.model.RelayAllocation;
+import com.example.turnserver.protocol.StunUtils;
+import com.example.turnserver.util.NetworkUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+
 /**
- * Handler for data relay operations (placeholder implementation)
+ * Netty handler for a relay socket: wraps peer traffic into ChannelData messages when
+ * the peer has a channel binding, or into Data indications otherwise, and sends them
+ * to the client through the server channel.
  */
-public class RelayHandler {
+public class RelayHandler extends SimpleChannelInboundHandler<DatagramPacket> {
     
     private static final Logger logger = LoggerFactory.getLogger(RelayHandler.class);
     
-    /**
-     * Relay data between peers
-     */
-    public void relayData(byte[] data, String sourceAddress, int sourcePort, 
-                         String destAddress, int destPort) {
-        logger.debug("Relaying {} bytes from {}:{} to {}:{}", 
-                     data.length, sourceAddress, sourcePort, destAddress, destPort);
+    private final RelayAllocation allocation;
+    private final DatagramBatcher datagramBatcher;
+    
+    public RelayHandler(RelayAllocation allocation, DatagramBatcher datagramBatcher) {
+        this.allocation = allocation;
+        this.datagramBatcher = datagramBatcher;
+    }
+    
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
+        datagramBatcher.recordRead();
+        
+        InetSocketAddress peer = packet.sender();
+        int peerAddress = NetworkUtils.ipv4ToInt(peer.getAddress());
         
-        // This is a placeholder implementation
-        // In a real TURN server, this would:
-        // 1. Validate the allocation and permissions
-        // 2. Forward the data to the destination peer
-        // 3. Handle channel data vs. Send/Data indications
-        // 4. Update statistics
+        // Silently drop traffic from peers without a permission
+        if (!allocation.isPermitted(peerAddress)) {
+            return;
+        }
         
-        logger.info("Data relay completed (placeholder implementation)");
+        ByteBuf payload = packet.content();
+        int length = payload.readableBytes();
+        
+        int channelNumber = allocation.getPeerChannel(ChannelBindingTable.peerKey(peerAddress, peer.getPort()));
+        ByteBuf message = channelNumber != 0
+            ? StunUtils.encodeChannelData(ctx.alloc(), channelNumber, payload)
+            : StunUtils.encodeDataIndication(ctx.alloc(), peer, payload);
+        datagramBatcher.write(allocation.getServerChannel(), new DatagramPacket(message, allocation.getClientAddress()));
+        allocation.recordRelayed(length);
     }
     
-    /**
-     * Handle channel data
-     */
-    public void handleChannelData(byte[] data, int channelNumber, String clientAddress, int clientPort) {
-        logger.debug("Handling channel data for channel {} from {}:{}", 
-                     channelNumber, clientAddress, clientPort);
-        
-        // This would handle channel-bound data in a full implementation
-        logger.info("Channel data handled (placeholder implementation)");
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        datagramBatcher.readComplete(ctx.channel());
+        super.channelReadComplete(ctx);
     }
     
-    /**
-     * Create permission for peer
-     */
-    public boolean createPermission(String allocationId, String peerAddress) {
-        logger.debug("Creating permission for peer {} on allocation {}", peerAddress, allocationId);
-        
-        // This would manage peer permissions in a full implementation
-        logger.info("Permission created (placeholder implementation)");
-        return true;
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        logger.debug("Relay channel active for allocation {}: {}",
+                     allocation.getAllocationId(), ctx.channel().localAddress());
+        super.channelActive(ctx);
     }
     
-    /**
-     * Remove permission for peer
-     */
-    public boolean removePermission(String allocationId, String peerAddress) {
-        logger.debug("Removing permission for peer {} on allocation {}", peerAddress, allocationId);
-        
-        // This would remove peer permissions in a full implementation
-        logger.info("Permission removed (placeholder implementation)");
-        return true;
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.warn("Exception on relay channel for allocation {}", allocation.getAllocationId(), cause);
+        // Don't close the channel for UDP
     }
 }
\ No newline at end of file
@@ -1,10 +1,14 @@
 package com.example.turnserver.handler;
 
-import com.example.turnserver.protocol.StunMessage;
+import com.example.turnserver.protocol.StunMessageView;
 import com.example.turnserver.service.TurnServerService;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+
 /**
  * Handler for STUN-specific messages
  */
@@ -21,9 +25,9 @@ public class StunMessageHandler {
     /**
      * Handle STUN Binding request
      */
-    public StunMessage handleBindingRequest(StunMessage request, String clientAddress, int clientPort) {
-        logger.debug("Handling STUN Binding request from {}:{}", clientAddress, clientPort);
+    public ByteBuf handleBindingRequest(StunMessageView request, InetSocketAddress clientAddress, ByteBufAllocator alloc) {
+        logger.debug("Handling STUN Binding request from {}", clientAddress);
         
-        return turnServerService.processBindingRequest(request, clientAddress, clientPort);
+        return turnServerService.processBindingRequest(request, clientAddress, alloc);
     }
 }
\ No newline at end of file
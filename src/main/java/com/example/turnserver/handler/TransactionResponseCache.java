@@ -0,0 +1,322 @@
+package com.example.turnserver.handler;
+
+import com.example.turnserver.service.ExpiryWheel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.socket.DatagramPacket;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Responses to recent TURN requests, keyed by client transport address and transaction ID,
+ * so that retransmitted requests (RFC 5389 section 7.2.1) are answered without being
+ * processed again. Without it a retransmitted Allocate is authenticated again and then fails
+ * with 437 because the first one succeeded.
+ *
+ * The server transport address and the protocol are the same for every request, so the
+ * client transport address and the transaction ID identify a transaction. The first request
+ * of a transaction opens an entry, and its encoded response is kept as a retained duplicate
+ * of the buffer that was sent. A retransmission gets another retained duplicate of it. The
+ * first one arriving while the request is still being processed waits for its response instead,
+ * with a copy of its datagram so that the read buffer it came in is not held; later ones are
+ * dropped, as the client retransmits anyway. A transaction that failed without a response is
+ * forgotten, so its waiting retransmission is processed again.
+ *
+ * Entries are dropped, and their buffers released, by a timeout on the {@link ExpiryWheel}
+ * once the window is over, which by default covers the 39.5 seconds a client keeps
+ * retransmitting. Once the cache holds the maximum number of entries, new transactions are
+ * processed without caching until entries expire.
+ */
+@Component
+public class TransactionResponseCache {
+    
+    private final ExpiryWheel expiryWheel;
+    private final DatagramBatcher datagramBatcher;
+    private final boolean enabled;
+    private final long windowNanos;
+    private final int maxEntries;
+    
+    private final Map<TransactionKey, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    
+    private final Counter hits;
+    private final Counter waits;
+    private final Counter misses;
+    private final Counter overflows;
+    
+    @Autowired
+    public TransactionResponseCache(ExpiryWheel expiryWheel,
+                                    DatagramBatcher datagramBatcher,
+                                    MeterRegistry meterRegistry,
+                                    @Value("${turn.server.response-cache.enabled:true}") boolean enabled,
+                                    @Value("${turn.server.response-cache.window-seconds:40}") long windowSeconds,
+                                    @Value("${turn.server.response-cache.max-entries:10000}") int maxEntries) {
+        this.expiryWheel = expiryWheel;
+        this.datagramBatcher = datagramBatcher;
+        this.enabled = enabled;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        this.maxEntries = maxEntries;
+        
+        this.hits = Counter.builder("turn.stun.response.cache")
+                .description("Requests looked up in the transaction response cache")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.waits = Counter.builder("turn.stun.response.cache")
+                .description("Requests looked up in the transaction response cache")
+                .tag("result", "in-flight")
+                .register(meterRegistry);
+        this.misses = Counter.builder("turn.stun.response.cache")
+                .description("Requests looked up in the transaction response cache")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        this.overflows = Counter.builder("turn.stun.response.cache")
+                .description("Requests looked up in the transaction response cache")
+                .tag("result", "full")
+                .register(meterRegistry);
+        Gauge.builder("turn.stun.response.cache.size", size, AtomicInteger::get)
+                .description("Transactions held in the response cache")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Start a transaction, or answer a retransmission of one
+     *
+     * @param datagram the request datagram, copied by a retransmission waiting for the response
+     * @param index index of the transaction ID in the datagram
+     * @return the entry to complete with the response, or null if the request is a
+     *         retransmission that was answered or will be answered from the cache
+     */
+    public Entry begin(Channel channel, InetSocketAddress sender, ByteBuf datagram, int index) {
+        if (!enabled) {
+            return Entry.UNCACHED;
+        }
+        
+        TransactionKey key = new TransactionKey(sender, datagram.getLong(index), datagram.getInt(index + 8));
+        while (true) {
+            Entry existing = entries.get(key);
+            if (existing == null) {
+                if (size.incrementAndGet() > maxEntries) {
+                    size.decrementAndGet();
+                    overflows.increment();
+                    return Entry.UNCACHED;
+                }
+                
+                Entry entry = new Entry(key);
+                if (entries.putIfAbsent(key, entry) == null) {
+                    misses.increment();
+                    expiryWheel.schedule(channel.eventLoop(), () -> expire(entry), windowNanos, TimeUnit.NANOSECONDS);
+                    return entry;
+                }
+                size.decrementAndGet();
+                continue;
+            }
+            
+            ByteBuf response = null;
+            synchronized (existing) {
+                if (existing.state == Entry.PENDING) {
+                    // One waiting retransmission is enough to redeliver the request
+                    if (existing.waiter == null) {
+                        int length = datagram.readableBytes();
+                        existing.waiter = new Waiter(channel, channel.alloc().buffer(length)
+                                .writeBytes(datagram, datagram.readerIndex(), length));
+                    }
+                    waits.increment();
+                    return null;
+                }
+                if (existing.state == Entry.COMPLETED) {
+                    response = existing.response.retainedDuplicate();
+                }
+            }
+            
+            if (response != null) {
+                hits.increment();
+                datagramBatcher.write(channel, new DatagramPacket(response, sender));
+                return null;
+            }
+            
+            // Abandoned or expired, and about to be removed: process the request again
+            if (entries.remove(key, existing)) {
+                size.decrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Keep the response of a transaction and send it to retransmissions waiting for it.
+     * The caller still owns the response buffer and sends it itself.
+     */
+    public void complete(Entry entry, ByteBuf response) {
+        if (entry == Entry.UNCACHED) {
+            return;
+        }
+        
+        Waiter waiter;
+        synchronized (entry) {
+            if (entry.state != Entry.PENDING) {
+                return;
+            }
+            entry.response = response.retainedDuplicate();
+            entry.state = Entry.COMPLETED;
+            waiter = entry.waiter;
+            entry.waiter = null;
+        }
+        
+        if (waiter != null) {
+            waiter.datagram.release();
+            datagramBatcher.write(waiter.channel, new DatagramPacket(response.retainedDuplicate(), entry.key.client));
+        }
+    }
+    
+    /**
+     * Give up on a transaction that produced no response, so that a retransmission of it is
+     * processed again. A retransmission already waiting for the response is read again from
+     * its datagram and starts a new transaction.
+     */
+    public void abandon(Entry entry) {
+        if (entry == Entry.UNCACHED) {
+            return;
+        }
+        
+        Waiter waiter;
+        synchronized (entry) {
+            if (entry.state != Entry.PENDING) {
+                return;
+            }
+            entry.state = Entry.ABANDONED;
+            waiter = entry.waiter;
+            entry.waiter = null;
+        }
+        if (entries.remove(entry.key, entry)) {
+            size.decrementAndGet();
+        }
+        
+        if (waiter != null) {
+            redeliver(waiter, entry.key.client);
+        }
+    }
+    
+    public int size() {
+        return size.get();
+    }
+    
+    private void expire(Entry entry) {
+        if (!entries.remove(entry.key, entry)) {
+            return;
+        }
+        size.decrementAndGet();
+        
+        Waiter waiter;
+        synchronized (entry) {
+            if (entry.response != null) {
+                entry.response.release();
+                entry.response = null;
+            }
+            entry.state = Entry.EXPIRED;
+            waiter = entry.waiter;
+            entry.waiter = null;
+        }
+        
+        // Still pending after the whole window: the client has given up on the transaction
+        if (waiter != null) {
+            waiter.datagram.release();
+        }
+    }
+    
+    /**
+     * Read a waiting retransmission again through the pipeline of the socket it arrived on,
+     * as a read burst of its own
+     */
+    private static void redeliver(Waiter waiter, InetSocketAddress sender) {
+        Channel channel = waiter.channel;
+        try {
+            channel.eventLoop().execute(() -> {
+                channel.pipeline().fireChannelRead(new DatagramPacket(waiter.datagram, null, sender));
+                channel.pipeline().fireChannelReadComplete();
+            });
+        } catch (RejectedExecutionException e) {
+            // The event loop is shutting down, and the socket with it
+            waiter.datagram.release();
+        }
+    }
+    
+    /**
+     * Cached transaction, guarded by its own monitor
+     */
+    public static final class Entry {
+        
+        static final Entry UNCACHED = new Entry(null);
+        
+        static final int PENDING = 0;
+        static final int COMPLETED = 1;
+        static final int ABANDONED = 2;
+        static final int EXPIRED = 3;
+        
+        final TransactionKey key;
+        int state = PENDING;
+        ByteBuf response;
+        Waiter waiter;
+        
+        Entry(TransactionKey key) {
+            this.key = key;
+        }
+    }
+    
+    /**
+     * Retransmission waiting for the response of its transaction, with its own copy of the datagram
+     */
+    private static final class Waiter {
+        
+        final Channel channel;
+        final ByteBuf datagram;
+        
+        Waiter(Channel channel, ByteBuf datagram) {
+            this.channel = channel;
+            this.datagram = datagram;
+        }
+    }
+    
+    private static final class TransactionKey {
+        
+        final InetSocketAddress client;
+        final long transactionIdHigh;
+        final int transactionIdLow;
+        final int hash;
+        
+        TransactionKey(InetSocketAddress client, long transactionIdHigh, int transactionIdLow) {
+            this.client = client;
+            this.transactionIdHigh = transactionIdHigh;
+            this.transactionIdLow = transactionIdLow;
+            this.hash = 31 * (31 * client.hashCode() + Long.hashCode(transactionIdHigh)) + transactionIdLow;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TransactionKey)) {
+                return false;
+            }
+            TransactionKey other = (TransactionKey) o;
+            return transactionIdHigh == other.transactionIdHigh
+                    && transactionIdLow == other.transactionIdLow
+                    && client.equals(other.client);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
\ No newline at end of file
@@ -1,11 +1,18 @@
 package com.example.turnserver.handler;
 
+import com.example.turnserver.model.RelayAllocation;
+import com.example.turnserver.protocol.AttributeType;
 import com.example.turnserver.protocol.StunMessage;
-import com.example.turnserver.protocol.StunUtils;
+import com.example.turnserver.protocol.StunMessageView;
+import com.example.turnserver.service.NonceService;
+import com.example.turnserver.service.RelayService;
 import com.example.turnserver.service.TurnServerService;
+import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
+
 /**
  * Handler for TURN-specific messages
  */
@@ -14,76 +21,79 @@ public class TurnMessageHandler {
     private static final Logger logger = LoggerFactory.getLogger(TurnMessageHandler.class);
     
     private final TurnServerService turnServerService;
+    private final RelayService relayService;
     
-    public TurnMessageHandler(TurnServerService turnServerService) {
+    public TurnMessageHandler(TurnServerService turnServerService, RelayService relayService) {
         this.turnServerService = turnServerService;
+        this.relayService = relayService;
     }
     
     /**
      * Handle TURN Allocate request
      */
-    public StunMessage handleAllocateRequest(StunMessage request, String clientAddress, int clientPort) {
+    public StunMessage handleAllocateRequest(StunMessage request, String clientAddress, int clientPort,
+                                             Channel serverChannel, NonceService.Status nonceStatus) {
         logger.debug("Handling TURN Allocate request from {}:{}", clientAddress, clientPort);
         
-        return turnServerService.processAllocateRequest(request, clientAddress, clientPort);
+        return turnServerService.processAllocateRequest(request, clientAddress, clientPort, serverChannel, nonceStatus);
     }
     
     /**
      * Handle TURN Refresh request
      */
-    public StunMessage handleRefreshRequest(StunMessage request, String clientAddress, int clientPort) {
+    public StunMessage handleRefreshRequest(StunMessage request, String clientAddress, int clientPort,
+                                            NonceService.Status nonceStatus) {
         logger.debug("Handling TURN Refresh request from {}:{}", clientAddress, clientPort);
         
-        return turnServerService.processRefreshRequest(request, clientAddress, clientPort);
+        return turnServerService.processRefreshRequest(request, clientAddress, clientPort, nonceStatus);
     }
     
     /**
-     * Handle TURN CreatePermission request (not fully implemented)
+     * Handle TURN CreatePermission request
      */
-    public StunMessage handleCreatePermissionRequest(StunMessage request, String clientAddress, int clientPort) {
+    public StunMessage handleCreatePermissionRequest(StunMessage request, String clientAddress, int clientPort,
+                                                     NonceService.Status nonceStatus) {
         logger.debug("Handling TURN CreatePermission request from {}:{}", clientAddress, clientPort);
         
-        // For now, return a simple success response
-        // In a full implementation, this would handle peer permissions
-        StunMessage response = new StunMessage(
-            com.example.turnserver.protocol.MessageType.CREATE_PERMISSION_RESPONSE, 
-            request.getTransactionId()
-        );
-        
-        response.addAttribute(StunUtils.createSoftwareAttribute("Netty TURN Server 1.0"));
-        
-        logger.info("CreatePermission request processed (placeholder implementation)");
-        return response;
+        return turnServerService.processCreatePermissionRequest(request, clientAddress, clientPort, nonceStatus);
     }
     
     /**
-     * Handle TURN ChannelBind request (not fully implemented)
+     * Handle TURN ChannelBind request
      */
-    public StunMessage handleChannelBindRequest(StunMessage request, String clientAddress, int clientPort) {
+    public StunMessage handleChannelBindRequest(StunMessage request, String clientAddress, int clientPort,
+                                                NonceService.Status nonceStatus) {
         logger.debug("Handling TURN ChannelBind request from {}:{}", clientAddress, clientPort);
         
-        // For now, return a simple success response
-        // In a full implementation, this would handle channel binding
-        StunMessage response = new StunMessage(
-            com.example.turnserver.protocol.MessageType.CHANNEL_BIND_RESPONSE, 
-            request.getTransactionId()
-        );
-        
-        response.addAttribute(StunUtils.createSoftwareAttribute("Netty TURN Server 1.0"));
-        
-        logger.info("ChannelBind request processed (placeholder implementation)");
-        return response;
+        return turnServerService.processChannelBindRequest(request, clientAddress, clientPort, nonceStatus);
     }
     
     /**
-     * Handle data relay (Send/Data indications)
+     * Handle data relay (Send indications): forward the DATA payload to the peer.
+     * Indications never get a response, so invalid ones are silently discarded.
      */
-    public void handleDataRelay(StunMessage request, String clientAddress, int clientPort) {
-        logger.debug("Handling data relay from {}:{}", clientAddress, clientPort);
+    public void handleDataRelay(StunMessageView request, InetSocketAddress sender) {
+        RelayAllocation relay = relayService.findByClient(sender);
+        if (relay == null) {
+            logger.debug("Dropping Send indication from {}: no allocation", sender);
+            return;
+        }
+        
+        int peerIndex = request.indexOf(AttributeType.XOR_PEER_ADDRESS);
+        int dataIndex = request.indexOf(AttributeType.DATA);
+        if (peerIndex < 0 || dataIndex < 0 || !request.isIPv4Address(peerIndex)) {
+            logger.debug("Dropping Send indication from {}: missing or invalid XOR-PEER-ADDRESS or DATA", sender);
+            return;
+        }
+        
+        // Decode the peer straight from the datagram and forward a slice of it
+        int peerAddress = request.getXorIPv4Address(peerIndex);
+        if (!relay.isPermitted(peerAddress)) {
+            logger.debug("Dropping Send indication from {}: no permission for peer", sender);
+            return;
+        }
         
-        // This would handle actual data relaying in a full implementation
-        // For now, just log the request
-        logger.info("Data relay request received from {}:{} (placeholder implementation)", 
-                   clientAddress, clientPort);
+        InetSocketAddress peer = relay.resolvePeer(peerAddress, request.getXorPort(peerIndex));
+        relayService.sendToPeer(relay, peer, request.retainedValue(dataIndex));
     }
 }
\ No newline at end of file
@@ -1,37 +1,64 @@
 package com.example.turnserver.handler;
 
+import com.example.turnserver.exception.TurnException;
+import com.example.turnserver.model.RelayAllocation;
 import com.example.turnserver.protocol.MessageType;
 import com.example.turnserver.protocol.StunMessage;
+import com.example.turnserver.protocol.StunMessageView;
 import com.example.turnserver.protocol.StunUtils;
+import com.example.turnserver.service.NonceService;
+import com.example.turnserver.service.RelayService;
 import com.example.turnserver.service.TurnServerService;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Main Netty handler for TURN/STUN server traffic
+ * Main Netty handler for TURN/STUN server traffic.
+ * Stateless, so a single instance serves every listener channel.
  */
 @Component
+@ChannelHandler.Sharable
 public class TurnServerHandler extends SimpleChannelInboundHandler<DatagramPacket> {
     
     private static final Logger logger = LoggerFactory.getLogger(TurnServerHandler.class);
     
+    // Reusable message index, one per event loop
+    private static final FastThreadLocal<StunMessageView> MESSAGE_VIEW = new FastThreadLocal<StunMessageView>() {
+        @Override
+        protected StunMessageView initialValue() {
+            return new StunMessageView();
+        }
+    };
+    
     private final TurnServerService turnServerService;
     private final StunMessageHandler stunMessageHandler;
     private final TurnMessageHandler turnMessageHandler;
+    private final RelayService relayService;
+    private final DatagramBatcher datagramBatcher;
+    private final TransactionResponseCache responseCache;
     
     @Autowired
-    public TurnServerHandler(TurnServerService turnServerService) {
+    public TurnServerHandler(TurnServerService turnServerService, RelayService relayService,
+                             DatagramBatcher datagramBatcher, TransactionResponseCache responseCache) {
         this.turnServerService = turnServerService;
+        this.relayService = relayService;
+        this.datagramBatcher = datagramBatcher;
+        this.responseCache = responseCache;
         this.stunMessageHandler = new StunMessageHandler(turnServerService);
-        this.turnMessageHandler = new TurnMessageHandler(turnServerService);
+        this.turnMessageHandler = new TurnMessageHandler(turnServerService, relayService);
     }
     
     @Override
@@ -39,73 +66,185 @@ public class TurnServerHandler extends SimpleChannelInboundHandler<DatagramPacke
         InetSocketAddress sender = packet.sender();
         ByteBuf content = packet.content();
         
-        logger.debug("Received packet from {}:{}, size: {} bytes", 
-                     sender.getHostString(), sender.getPort(), content.readableBytes());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received packet from {}:{}, size: {} bytes",
+                         sender.getHostString(), sender.getPort(), content.readableBytes());
+        }
+        
+        StunMessageView view = MESSAGE_VIEW.get();
+        if (!view.wrap(content)) {
+            logger.debug("Dropping malformed STUN message from {}", sender);
+            return;
+        }
         
+        TransactionResponseCache.Entry cached = null;
         try {
+            // Indications are handled straight from the datagram without decoding the message
+            int messageType = view.getMessageType();
+            if (messageType == MessageType.SEND_INDICATION.getValue()) {
+                turnMessageHandler.handleDataRelay(view, sender);
+                return;
+            }
+            if (messageType == MessageType.DATA_INDICATION.getValue()) {
+                // Data indications only flow from server to client
+                return;
+            }
+            if (messageType == MessageType.BINDING_REQUEST.getValue()) {
+                ByteBuf response = stunMessageHandler.handleBindingRequest(view, sender, ctx.alloc());
+                datagramBatcher.write(ctx.channel(), new DatagramPacket(response, sender));
+                return;
+            }
+            
+            // Retransmissions are answered with the original response, or wait for it
+            cached = responseCache.begin(ctx.channel(), sender, view.getBuffer(), view.getTransactionIdIndex());
+            if (cached == null) {
+                logger.debug("Retransmission from {} handled by the response cache", sender);
+                return;
+            }
+            
             // Parse STUN/TURN message
-            StunMessage request = StunUtils.parseMessage(content.copy());
+            StunMessage request = StunUtils.parseMessage(view);
             
             logger.debug("Parsed message: type={}, transaction={}", 
                          request.getMessageType(), 
                          java.util.Arrays.toString(request.getTransactionId()));
             
-            // Process message and generate response
-            StunMessage response = processMessage(request, sender);
+            // The nonce is validated once, and its status used for the rest of the processing
+            NonceService.Status nonceStatus = turnServerService.checkNonce(request, sender.getHostString());
             
-            if (response != null) {
-                // Encode and send response
-                ByteBuf responseBuffer = StunUtils.encodeMessage(response);
-                DatagramPacket responsePacket = new DatagramPacket(responseBuffer, sender);
-                ctx.writeAndFlush(responsePacket);
-                
-                logger.debug("Sent response to {}:{}, type={}", 
-                             sender.getHostString(), sender.getPort(), response.getMessageType());
+            // A credential missing from the cache is loaded off the event loop, and the request
+            // processed again from its datagram once it is cached
+            CompletableFuture<?> credentialLoad = turnServerService.loadCredential(request, nonceStatus);
+            if (credentialLoad != null && !credentialLoad.isDone()) {
+                TransactionResponseCache.Entry deferred = cached;
+                cached = null;
+                content.retain();
+                credentialLoad.whenComplete((credential, e) -> ctx.channel().eventLoop().execute(
+                    () -> resume(ctx, content, sender, nonceStatus, deferred)));
+                return;
             }
             
+            respond(ctx, request, sender, nonceStatus, cached);
+            cached = null;
+            
         } catch (Exception e) {
             logger.error("Error processing packet from " + sender, e);
             // Send error response if possible
             sendErrorResponse(ctx, sender, e);
+        } finally {
+            if (cached != null) {
+                responseCache.abandon(cached);
+            }
+            view.clear();
+        }
+    }
+    
+    /**
+     * Process a request whose credential load has completed, from its retained datagram
+     */
+    private void resume(ChannelHandlerContext ctx, ByteBuf content, InetSocketAddress sender,
+                        NonceService.Status nonceStatus, TransactionResponseCache.Entry cached) {
+        StunMessageView view = MESSAGE_VIEW.get();
+        try {
+            view.wrap(content);
+            respond(ctx, StunUtils.parseMessage(view), sender, nonceStatus, cached);
+            cached = null;
+        } catch (Exception e) {
+            logger.error("Error processing packet from " + sender, e);
+            sendErrorResponse(ctx, sender, e);
+        } finally {
+            if (cached != null) {
+                responseCache.abandon(cached);
+            }
+            view.clear();
+            content.release();
+            datagramBatcher.flush();
         }
     }
     
+    /**
+     * Process a request, then send its response and keep it for retransmissions.
+     * A successful Allocate is only answered once its relay socket is bound.
+     */
+    private void respond(ChannelHandlerContext ctx, StunMessage request, InetSocketAddress sender,
+                         NonceService.Status nonceStatus, TransactionResponseCache.Entry cached) {
+        StunMessage response = processMessage(request, sender, ctx.channel(), nonceStatus);
+        if (response == null) {
+            responseCache.abandon(cached);
+            return;
+        }
+        
+        if (response.getMessageType() == MessageType.ALLOCATE_RESPONSE) {
+            RelayAllocation relay = relayService.findByClient(sender);
+            ChannelFuture bindFuture = relay != null ? relay.getBindFuture() : null;
+            if (bindFuture != null && !bindFuture.isDone()) {
+                // The relay channel shares this event loop, so the listener runs on it
+                bindFuture.addListener(future -> {
+                    send(ctx, future.isSuccess() ? response : bindFailed(request), sender, cached);
+                    datagramBatcher.flush();
+                });
+                return;
+            }
+            if (bindFuture == null || !bindFuture.isSuccess()) {
+                send(ctx, bindFailed(request), sender, cached);
+                return;
+            }
+        }
+        send(ctx, response, sender, cached);
+    }
+    
+    private void send(ChannelHandlerContext ctx, StunMessage response, InetSocketAddress sender,
+                      TransactionResponseCache.Entry cached) {
+        // Encode and send response
+        ByteBuf responseBuffer = StunUtils.encodeMessage(ctx.alloc(), response);
+        responseCache.complete(cached, responseBuffer);
+        datagramBatcher.write(ctx.channel(), new DatagramPacket(responseBuffer, sender));
+        
+        logger.debug("Sent response to {}:{}, type={}", 
+                     sender.getHostString(), sender.getPort(), response.getMessageType());
+    }
+    
+    /**
+     * Answer an Allocate whose relay socket could not be bound; the relay is already closed
+     */
+    private StunMessage bindFailed(StunMessage request) {
+        logger.warn("Relay socket for {} could not be bound", request.getMessageType());
+        return createErrorResponse(request, 508, "Insufficient Capacity");
+    }
+    
     /**
      * Process incoming STUN/TURN message
      */
-    private StunMessage processMessage(StunMessage request, InetSocketAddress sender) {
+    private StunMessage processMessage(StunMessage request, InetSocketAddress sender, Channel channel,
+                                       NonceService.Status nonceStatus) {
         MessageType messageType = request.getMessageType();
         String clientAddress = sender.getHostString();
         int clientPort = sender.getPort();
         
         try {
             switch (messageType) {
-                case BINDING_REQUEST:
-                    return stunMessageHandler.handleBindingRequest(request, clientAddress, clientPort);
-                    
                 case ALLOCATE_REQUEST:
-                    return turnMessageHandler.handleAllocateRequest(request, clientAddress, clientPort);
+                    return turnMessageHandler.handleAllocateRequest(request, clientAddress, clientPort, channel, nonceStatus);
                     
                 case REFRESH_REQUEST:
-                    return turnMessageHandler.handleRefreshRequest(request, clientAddress, clientPort);
+                    return turnMessageHandler.handleRefreshRequest(request, clientAddress, clientPort, nonceStatus);
                     
                 case CREATE_PERMISSION_REQUEST:
-                    return turnMessageHandler.handleCreatePermissionRequest(request, clientAddress, clientPort);
+                    return turnMessageHandler.handleCreatePermissionRequest(request, clientAddress, clientPort, nonceStatus);
                     
                 case CHANNEL_BIND_REQUEST:
-                    return turnMessageHandler.handleChannelBindRequest(request, clientAddress, clientPort);
-                    
-                case SEND_INDICATION:
-                case DATA_INDICATION:
-                    // Handle data relay (no response needed for indications)
-                    turnMessageHandler.handleDataRelay(request, clientAddress, clientPort);
-                    return null;
+                    return turnMessageHandler.handleChannelBindRequest(request, clientAddress, clientPort, nonceStatus);
                     
                 default:
                     logger.warn("Unsupported message type: {}", messageType);
                     return createErrorResponse(request, 400, "Bad Request");
             }
             
+        } catch (TurnException e) {
+            logger.warn("Rejected {} from {}:{}: {} {}", messageType, clientAddress, clientPort,
+                        e.getErrorCode(), e.getMessage());
+            return createErrorResponse(request, e.getErrorCode(), e.getMessage());
+            
         } catch (Exception e) {
             logger.error("Error processing {} from {}:{}", messageType, clientAddress, clientPort, e);
             return createErrorResponse(request, 500, "Server Error");
@@ -140,7 +279,7 @@ public class TurnServerHandler extends SimpleChannelInboundHandler<DatagramPacke
             errorResponse.addAttribute(StunUtils.createErrorCodeAttribute(500, "Server Error"));
             errorResponse.addAttribute(StunUtils.createSoftwareAttribute("Netty TURN Server 1.0"));
             
-            ByteBuf responseBuffer = StunUtils.encodeMessage(errorResponse);
+            ByteBuf responseBuffer = StunUtils.encodeMessage(ctx.alloc(), errorResponse);
             DatagramPacket responsePacket = new DatagramPacket(responseBuffer, sender);
             ctx.writeAndFlush(responsePacket);
             
@@ -0,0 +1,262 @@
+package com.example.turnserver.model;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Channel bindings of a single allocation (RFC 5766 section 11).
+ *
+ * Two open-addressing hash tables over primitive keys: channel number -> peer for
+ * outbound ChannelData, and peer key -> channel number for wrapping inbound peer
+ * traffic into ChannelData. The peer key packs the IPv4 address and port into a long
+ * (see {@link #peerKey(int, int)}), so both directions are O(1) without boxing.
+ * Not thread-safe: the table is confined to the event loop of its allocation.
+ */
+public class ChannelBindingTable {
+    
+    // Channel 0 and peer key 0 (0.0.0.0:0) are never valid, so they mark free slots
+    private static final int FREE_CHANNEL = 0;
+    private static final long FREE_PEER = 0L;
+    private static final int INITIAL_CAPACITY = 4;
+    
+    // Channel number -> binding
+    private int[] channels;
+    private InetSocketAddress[] peers;
+    private long[] peerKeys;
+    private long[] deadlines;
+    private int channelMask;
+    
+    // Peer key -> channel number
+    private long[] peerIndexKeys;
+    private int[] peerIndexChannels;
+    private int peerMask;
+    
+    private int size;
+    
+    public ChannelBindingTable() {
+        allocateChannelTable(INITIAL_CAPACITY);
+        allocatePeerTable(INITIAL_CAPACITY);
+    }
+    
+    /**
+     * Pack an IPv4 address and a port into a peer key
+     */
+    public static long peerKey(int address, int port) {
+        return ((address & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+    
+    /**
+     * Get the peer bound to a channel, or null if the channel is not bound
+     */
+    public InetSocketAddress getPeer(int channelNumber) {
+        int index = channelIndexOf(channelNumber);
+        return index >= 0 ? peers[index] : null;
+    }
+    
+    /**
+     * Get the channel bound to a peer key, or 0 if the peer has no channel
+     */
+    public int getChannel(long peerKey) {
+        int index = peerIndexOf(peerKey);
+        return index >= 0 ? peerIndexChannels[index] : FREE_CHANNEL;
+    }
+    
+    /**
+     * Get the deadline of a binding, or 0 if the channel is not bound
+     */
+    public long deadline(int channelNumber) {
+        int index = channelIndexOf(channelNumber);
+        return index >= 0 ? deadlines[index] : 0L;
+    }
+    
+    /**
+     * Create or refresh a binding. The caller must make sure neither the channel nor
+     * the peer is bound to something else.
+     *
+     * @return true if the binding did not exist before
+     */
+    public boolean bind(int channelNumber, InetSocketAddress peer, long peerKey, long deadline) {
+        if (channelNumber == FREE_CHANNEL || peerKey == FREE_PEER) {
+            throw new IllegalArgumentException("Invalid channel binding");
+        }
+        
+        int index = channelIndexOf(channelNumber);
+        if (index >= 0) {
+            deadlines[index] = deadline;
+            return false;
+        }
+        
+        if ((size + 1) * 2 > channels.length) {
+            resize(channels.length * 2);
+        }
+        insertChannel(channelNumber, peer, peerKey, deadline);
+        insertPeer(peerKey, channelNumber);
+        size++;
+        return true;
+    }
+    
+    /**
+     * Remove a binding.
+     *
+     * @return true if the channel was bound
+     */
+    public boolean remove(int channelNumber) {
+        int index = channelIndexOf(channelNumber);
+        if (index < 0) {
+            return false;
+        }
+        
+        long peerKey = peerKeys[index];
+        removeChannelAt(index);
+        removePeerAt(peerIndexOf(peerKey));
+        size--;
+        return true;
+    }
+    
+    /**
+     * Remove every binding
+     */
+    public void clear() {
+        allocateChannelTable(INITIAL_CAPACITY);
+        allocatePeerTable(INITIAL_CAPACITY);
+        size = 0;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    private int channelIndexOf(int channelNumber) {
+        int index = hash(channelNumber) & channelMask;
+        while (true) {
+            int current = channels[index];
+            if (current == channelNumber) {
+                return index;
+            }
+            if (current == FREE_CHANNEL) {
+                return -1;
+            }
+            index = (index + 1) & channelMask;
+        }
+    }
+    
+    private int peerIndexOf(long peerKey) {
+        int index = hash(peerKey) & peerMask;
+        while (true) {
+            long current = peerIndexKeys[index];
+            if (current == peerKey) {
+                return index;
+            }
+            if (current == FREE_PEER) {
+                return -1;
+            }
+            index = (index + 1) & peerMask;
+        }
+    }
+    
+    private void insertChannel(int channelNumber, InetSocketAddress peer, long peerKey, long deadline) {
+        int index = hash(channelNumber) & channelMask;
+        while (channels[index] != FREE_CHANNEL) {
+            index = (index + 1) & channelMask;
+        }
+        channels[index] = channelNumber;
+        peers[index] = peer;
+        peerKeys[index] = peerKey;
+        deadlines[index] = deadline;
+    }
+    
+    private void insertPeer(long peerKey, int channelNumber) {
+        int index = hash(peerKey) & peerMask;
+        while (peerIndexKeys[index] != FREE_PEER) {
+            index = (index + 1) & peerMask;
+        }
+        peerIndexKeys[index] = peerKey;
+        peerIndexChannels[index] = channelNumber;
+    }
+    
+    /**
+     * Backward-shift deletion in the channel table
+     */
+    private void removeChannelAt(int index) {
+        int free = index;
+        int next = (free + 1) & channelMask;
+        while (channels[next] != FREE_CHANNEL) {
+            int home = hash(channels[next]) & channelMask;
+            if (((next - home) & channelMask) >= ((next - free) & channelMask)) {
+                channels[free] = channels[next];
+                peers[free] = peers[next];
+                peerKeys[free] = peerKeys[next];
+                deadlines[free] = deadlines[next];
+                free = next;
+            }
+            next = (next + 1) & channelMask;
+        }
+        channels[free] = FREE_CHANNEL;
+        peers[free] = null;
+        peerKeys[free] = FREE_PEER;
+        deadlines[free] = 0L;
+    }
+    
+    /**
+     * Backward-shift deletion in the peer index
+     */
+    private void removePeerAt(int index) {
+        int free = index;
+        int next = (free + 1) & peerMask;
+        while (peerIndexKeys[next] != FREE_PEER) {
+            int home = hash(peerIndexKeys[next]) & peerMask;
+            if (((next - home) & peerMask) >= ((next - free) & peerMask)) {
+                peerIndexKeys[free] = peerIndexKeys[next];
+                peerIndexChannels[free] = peerIndexChannels[next];
+                free = next;
+            }
+            next = (next + 1) & peerMask;
+        }
+        peerIndexKeys[free] = FREE_PEER;
+        peerIndexChannels[free] = FREE_CHANNEL;
+    }
+    
+    private void resize(int capacity) {
+        int[] oldChannels = channels;
+        InetSocketAddress[] oldPeers = peers;
+        long[] oldPeerKeys = peerKeys;
+        long[] oldDeadlines = deadlines;
+        
+        allocateChannelTable(capacity);
+        allocatePeerTable(capacity);
+        
+        for (int i = 0; i < oldChannels.length; i++) {
+            if (oldChannels[i] != FREE_CHANNEL) {
+                insertChannel(oldChannels[i], oldPeers[i], oldPeerKeys[i], oldDeadlines[i]);
+                insertPeer(oldPeerKeys[i], oldChannels[i]);
+            }
+        }
+    }
+    
+    private void allocateChannelTable(int capacity) {
+        channels = new int[capacity];
+        peers = new InetSocketAddress[capacity];
+        peerKeys = new long[capacity];
+        deadlines = new long[capacity];
+        channelMask = capacity - 1;
+    }
+    
+    private void allocatePeerTable(int capacity) {
+        peerIndexKeys = new long[capacity];
+        peerIndexChannels = new int[capacity];
+        peerMask = capacity - 1;
+    }
+    
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
\ No newline at end of file
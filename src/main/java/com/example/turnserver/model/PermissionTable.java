@@ -0,0 +1,157 @@
+package com.example.turnserver.model;
+
+/**
+ * Permission table of a single allocation (RFC 5766 section 8).
+ *
+ * Open-addressing hash table keyed by the IPv4 address of the peer, holding the
+ * permission deadline in System.nanoTime() units. Keys and deadlines live in two
+ * primitive arrays, so lookups on the packet path neither box nor allocate.
+ * Not thread-safe: the table is confined to the event loop of its allocation.
+ */
+public class PermissionTable {
+
+    // 0.0.0.0 is never a valid peer, so it marks free slots
+    private static final int FREE = 0;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int[] addresses;
+    private long[] deadlines;
+    private int mask;
+    private int size;
+
+    public PermissionTable() {
+        addresses = new int[INITIAL_CAPACITY];
+        deadlines = new long[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+    }
+
+    /**
+     * Check whether a permission exists for the peer address
+     */
+    public boolean contains(int address) {
+        return address != FREE && indexOf(address) >= 0;
+    }
+
+    /**
+     * Install or refresh a permission.
+     *
+     * @return true if the permission did not exist before
+     */
+    public boolean install(int address, long deadline) {
+        if (address == FREE) {
+            throw new IllegalArgumentException("Cannot install a permission for 0.0.0.0");
+        }
+
+        int index = indexOf(address);
+        if (index >= 0) {
+            deadlines[index] = deadline;
+            return false;
+        }
+
+        if ((size + 1) * 2 > addresses.length) {
+            resize(addresses.length * 2);
+        }
+        insert(address, deadline);
+        size++;
+        return true;
+    }
+
+    /**
+     * Get the deadline of a permission, or 0 if there is none
+     */
+    public long deadline(int address) {
+        int index = indexOf(address);
+        return index >= 0 ? deadlines[index] : 0L;
+    }
+
+    /**
+     * Remove a permission.
+     *
+     * @return true if the permission existed
+     */
+    public boolean remove(int address) {
+        int index = indexOf(address);
+        if (index < 0) {
+            return false;
+        }
+
+        // Backward-shift deletion keeps probe sequences intact without tombstones
+        int free = index;
+        int next = (free + 1) & mask;
+        while (addresses[next] != FREE) {
+            int home = hash(addresses[next]) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                addresses[free] = addresses[next];
+                deadlines[free] = deadlines[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        addresses[free] = FREE;
+        deadlines[free] = 0L;
+        size--;
+        return true;
+    }
+
+    /**
+     * Remove every permission
+     */
+    public void clear() {
+        addresses = new int[INITIAL_CAPACITY];
+        deadlines = new long[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private int indexOf(int address) {
+        int index = hash(address) & mask;
+        while (true) {
+            int current = addresses[index];
+            if (current == address) {
+                return index;
+            }
+            if (current == FREE) {
+                return -1;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void insert(int address, long deadline) {
+        int index = hash(address) & mask;
+        while (addresses[index] != FREE) {
+            index = (index + 1) & mask;
+        }
+        addresses[index] = address;
+        deadlines[index] = deadline;
+    }
+
+    private void resize(int capacity) {
+        int[] oldAddresses = addresses;
+        long[] oldDeadlines = deadlines;
+
+        addresses = new int[capacity];
+        deadlines = new long[capacity];
+        mask = capacity - 1;
+
+        for (int i = 0; i < oldAddresses.length; i++) {
+            if (oldAddresses[i] != FREE) {
+                insert(oldAddresses[i], oldDeadlines[i]);
+            }
+        }
+    }
+
+    private static int hash(int address) {
+        // Spread the host bits, which vary most between peers, over the whole index
+        int h = address * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
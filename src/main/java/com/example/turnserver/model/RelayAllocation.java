@@ -0,0 +1,181 @@
+package com.example.turnserver.model;
+
+import com.example.turnserver.util.NetworkUtils;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+import java.net.InetSocketAddress;
+
+/**
+ * In-memory data plane state of a TURN allocation.
+ *
+ * The relay channel is registered on the same event loop as the server channel
+ * that received the Allocate request, so everything below is confined to that
+ * event loop and is read on the packet path without any locking.
+ */
+public class RelayAllocation {
+    
+    private final String allocationId;
+    private final String username;
+    private final InetSocketAddress clientAddress;
+    private final InetSocketAddress relayAddress;
+    private final Channel serverChannel;
+    
+    private volatile Channel relayChannel;
+    private volatile ChannelFuture bindFuture;
+    private volatile long expiresAtNanos;
+    
+    // Channel bindings, looked up for every ChannelData message in both directions
+    private final ChannelBindingTable channelBindings = new ChannelBindingTable();
+    
+    // Peer IPv4 address -> permission deadline, checked for every inbound peer packet
+    private final PermissionTable permissions = new PermissionTable();
+    
+    // Traffic counters, only written from the event loop
+    private long bytesRelayed;
+    private long packetsRelayed;
+    
+    // Last peer addressed through a Send indication, so a stream to one peer reuses the address object
+    private long lastPeerKey;
+    private InetSocketAddress lastPeer;
+    
+    public RelayAllocation(String allocationId, String username, InetSocketAddress clientAddress,
+                           InetSocketAddress relayAddress, Channel serverChannel) {
+        this.allocationId = allocationId;
+        this.username = username;
+        this.clientAddress = clientAddress;
+        this.relayAddress = relayAddress;
+        this.serverChannel = serverChannel;
+    }
+    
+    public String getAllocationId() {
+        return allocationId;
+    }
+    
+    public String getUsername() {
+        return username;
+    }
+    
+    /**
+     * Client transport address, i.e. where Data indications are sent to
+     */
+    public InetSocketAddress getClientAddress() {
+        return clientAddress;
+    }
+    
+    /**
+     * Relayed transport address, as advertised in XOR-RELAYED-ADDRESS
+     */
+    public InetSocketAddress getRelayAddress() {
+        return relayAddress;
+    }
+    
+    public int getRelayPort() {
+        return relayAddress.getPort();
+    }
+    
+    /**
+     * Server channel the client talks to
+     */
+    public Channel getServerChannel() {
+        return serverChannel;
+    }
+    
+    /**
+     * Channel bound on the relayed transport address
+     */
+    public Channel getRelayChannel() {
+        return relayChannel;
+    }
+    
+    public void setRelayChannel(Channel relayChannel) {
+        this.relayChannel = relayChannel;
+    }
+    
+    /**
+     * Bind of the relay channel, which the Allocate success response waits for
+     */
+    public ChannelFuture getBindFuture() {
+        return bindFuture;
+    }
+    
+    public void setBindFuture(ChannelFuture bindFuture) {
+        this.bindFuture = bindFuture;
+        this.relayChannel = bindFuture.channel();
+    }
+    
+    public long getExpiresAtNanos() {
+        return expiresAtNanos;
+    }
+    
+    public void setExpiresAtNanos(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+    
+    /**
+     * Get the peer bound to a channel number, or null if the channel is not bound
+     */
+    public InetSocketAddress getChannelPeer(int channelNumber) {
+        return channelBindings.getPeer(channelNumber);
+    }
+    
+    /**
+     * Get the channel bound to a peer, or 0 if the peer has no channel
+     */
+    public int getPeerChannel(long peerKey) {
+        return channelBindings.getChannel(peerKey);
+    }
+    
+    public ChannelBindingTable getChannelBindings() {
+        return channelBindings;
+    }
+    
+    /**
+     * Check whether the peer address has a permission
+     */
+    public boolean isPermitted(int peerAddress) {
+        return permissions.contains(peerAddress);
+    }
+    
+    public PermissionTable getPermissions() {
+        return permissions;
+    }
+    
+    public int getPermissionCount() {
+        return permissions.size();
+    }
+    
+    /**
+     * Get the socket address of a peer decoded from a Send indication
+     */
+    public InetSocketAddress resolvePeer(int address, int port) {
+        long peerKey = ChannelBindingTable.peerKey(address, port);
+        if (peerKey != lastPeerKey || lastPeer == null) {
+            lastPeer = new InetSocketAddress(NetworkUtils.intToIpv4(address), port);
+            lastPeerKey = peerKey;
+        }
+        return lastPeer;
+    }
+    
+    public void recordRelayed(int bytes) {
+        bytesRelayed += bytes;
+        packetsRelayed++;
+    }
+    
+    public long getBytesRelayed() {
+        return bytesRelayed;
+    }
+    
+    public long getPacketsRelayed() {
+        return packetsRelayed;
+    }
+    
+    @Override
+    public String toString() {
+        return "RelayAllocation{" +
+                "allocationId='" + allocationId + '\'' +
+                ", clientAddress=" + clientAddress +
+                ", relayAddress=" + relayAddress +
+                '}';
+    }
+}
\ No newline at end of file
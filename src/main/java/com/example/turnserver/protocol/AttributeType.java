@@ -1,7 +1,7 @@
 package com.example.turnserver.protocol;
 
 /**
- * STUN/TURN attribute types as defined in RFC 5389 and RFC 5766
+ * STUN/TURN attribute types as defined in RFC 5389, RFC 5766 and RFC 7635
  */
 public enum AttributeType {
     // Comprehension-required range (0x0000-0x7FFF)
@@ -25,6 +25,9 @@ public enum AttributeType {
     DONT_FRAGMENT(0x001A),
     RESERVATION_TOKEN(0x0022),
     
+    // Third-party authorization (RFC 7635)
+    ACCESS_TOKEN(0x001B),
+    
     // Comprehension-optional range (0x8000-0xFFFF)
     SOFTWARE(0x8022),
     ALTERNATE_SERVER(0x8023),
@@ -32,7 +35,8 @@ public enum AttributeType {
     
     // Additional TURN attributes
     RESPONSE_ORIGIN(0x802B),
-    OTHER_ADDRESS(0x802C);
+    OTHER_ADDRESS(0x802C),
+    THIRD_PARTY_AUTHORIZATION(0x802E);
     
     private final int value;
     
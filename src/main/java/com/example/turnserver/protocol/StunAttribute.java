@@ -22,6 +22,13 @@ public class StunAttribute {
         return Arrays.copyOf(value, value.length);
     }
     
+    /**
+     * Value without the defensive copy, for encoders in this package
+     */
+    byte[] rawValue() {
+        return value;
+    }
+    
     public int getLength() {
         return value.length;
     }
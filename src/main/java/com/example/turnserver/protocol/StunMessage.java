@@ -19,6 +19,13 @@ public class StunMessage {
     private final byte[] transactionId;
     private final List<StunAttribute> attributes;
     
+    // Key of the MESSAGE-INTEGRITY appended when the message is encoded, if any
+    private byte[] integrityKey;
+    private boolean fingerprint;
+    
+    // Received datagram the message was parsed from, only valid while the request is handled
+    private StunMessageView source;
+    
     public StunMessage(MessageType messageType, byte[] transactionId) {
         this.messageType = Objects.requireNonNull(messageType, "Message type cannot be null");
         if (transactionId == null || transactionId.length != 12) {
@@ -44,6 +51,52 @@ public class StunMessage {
         attributes.add(Objects.requireNonNull(attribute, "Attribute cannot be null"));
     }
     
+    /**
+     * Have the encoder append MESSAGE-INTEGRITY computed with the given key.
+     * On a received request, this is the key its MESSAGE-INTEGRITY was verified with.
+     */
+    public void setIntegrityKey(byte[] integrityKey) {
+        this.integrityKey = integrityKey;
+    }
+    
+    public byte[] getIntegrityKey() {
+        return integrityKey;
+    }
+    
+    /**
+     * Have the encoder append FINGERPRINT as the last attribute
+     */
+    public void setFingerprint(boolean fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+    
+    public boolean hasFingerprint() {
+        return fingerprint;
+    }
+    
+    /**
+     * Get the view of the received datagram this message was parsed from, or null for
+     * messages built locally. Only valid while the request is being handled.
+     */
+    public StunMessageView getSource() {
+        return source;
+    }
+    
+    void setSource(StunMessageView source) {
+        this.source = source;
+    }
+    
+    /**
+     * Transaction ID and attributes without the defensive copies, for encoders in this package
+     */
+    byte[] transactionId() {
+        return transactionId;
+    }
+    
+    List<StunAttribute> attributes() {
+        return attributes;
+    }
+    
     public StunAttribute getAttribute(AttributeType type) {
         for (StunAttribute attr : attributes) {
             if (attr.getType() == type) {
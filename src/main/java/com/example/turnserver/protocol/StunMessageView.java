@@ -0,0 +1,267 @@
+package com.example.turnserver.protocol;
+
+import io.netty.buffer.ByteBuf;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only flyweight view of a STUN message inside a ByteBuf.
+ *
+ * {@link #wrap(ByteBuf)} validates the header and indexes the type, value offset and value
+ * length of every attribute into reusable int arrays; nothing is copied out of the buffer.
+ * Primitive accessors decode LIFETIME, CHANNEL-NUMBER and XOR addresses straight from the
+ * buffer, so a message can be handled without any per-message allocation.
+ *
+ * A view is meant to be reused, one per event loop: it is only valid while the wrapped
+ * buffer is, and must not be shared between threads.
+ */
+public final class StunMessageView {
+    
+    // Attributes beyond this are not indexed; real STUN messages carry far fewer
+    private static final int MAX_ATTRIBUTES = 32;
+    
+    private static final int FAMILY_IPV4 = 0x01;
+    private static final int FAMILY_IPV6 = 0x02;
+    
+    private final int[] attributeTypes = new int[MAX_ATTRIBUTES];
+    private final int[] valueOffsets = new int[MAX_ATTRIBUTES];
+    private final int[] valueLengths = new int[MAX_ATTRIBUTES];
+    private int attributeCount;
+    
+    private ByteBuf buffer;
+    private int start;
+    private int messageType;
+    private int messageLength;
+    
+    /**
+     * Index the STUN message starting at the reader index of the buffer.
+     * The reader index is left untouched.
+     *
+     * @return false if the buffer does not hold a well-formed STUN message
+     */
+    public boolean wrap(ByteBuf buffer) {
+        clear();
+        
+        int index = buffer.readerIndex();
+        int readable = buffer.readableBytes();
+        if (readable < StunMessage.HEADER_LENGTH) {
+            return false;
+        }
+        
+        int type = buffer.getUnsignedShort(index);
+        int length = buffer.getUnsignedShort(index + 2);
+        if ((type & 0xC000) != 0
+                || (length & 3) != 0
+                || StunMessage.HEADER_LENGTH + length > readable
+                || buffer.getInt(index + 4) != StunMessage.MAGIC_COOKIE) {
+            return false;
+        }
+        
+        int position = index + StunMessage.HEADER_LENGTH;
+        int end = position + length;
+        int count = 0;
+        while (position < end) {
+            if (end - position < 4) {
+                return false;
+            }
+            int attributeType = buffer.getUnsignedShort(position);
+            int valueLength = buffer.getUnsignedShort(position + 2);
+            int valueOffset = position + 4;
+            if (valueOffset + valueLength > end) {
+                return false;
+            }
+            
+            if (count < MAX_ATTRIBUTES) {
+                attributeTypes[count] = attributeType;
+                valueOffsets[count] = valueOffset;
+                valueLengths[count] = valueLength;
+                count++;
+            }
+            position = valueOffset + ((valueLength + 3) & ~3);
+        }
+        
+        this.buffer = buffer;
+        this.start = index;
+        this.messageType = type;
+        this.messageLength = length;
+        this.attributeCount = count;
+        return true;
+    }
+    
+    /**
+     * Drop the reference to the wrapped buffer
+     */
+    public void clear() {
+        buffer = null;
+        attributeCount = 0;
+    }
+    
+    public ByteBuf getBuffer() {
+        return buffer;
+    }
+    
+    /**
+     * Get the buffer index of the first header byte
+     */
+    public int getStart() {
+        return start;
+    }
+    
+    public int getMessageType() {
+        return messageType;
+    }
+    
+    /**
+     * Get the message length from the header, excluding the 20-byte header itself
+     */
+    public int getMessageLength() {
+        return messageLength;
+    }
+    
+    /**
+     * Get the buffer index of the 12-byte transaction ID
+     */
+    public int getTransactionIdIndex() {
+        return start + 8;
+    }
+    
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+    
+    public int getAttributeType(int index) {
+        return attributeTypes[index];
+    }
+    
+    /**
+     * Get the buffer index of an attribute value
+     */
+    public int getValueOffset(int index) {
+        return valueOffsets[index];
+    }
+    
+    public int getValueLength(int index) {
+        return valueLengths[index];
+    }
+    
+    /**
+     * Find the first attribute of a type
+     *
+     * @return the attribute index, or -1 if the message has no such attribute
+     */
+    public int indexOf(AttributeType type) {
+        int value = type.getValue();
+        for (int i = 0; i < attributeCount; i++) {
+            if (attributeTypes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    public boolean hasAttribute(AttributeType type) {
+        return indexOf(type) >= 0;
+    }
+    
+    /**
+     * Read a 32-bit attribute value such as LIFETIME
+     */
+    public long getUnsignedInt(int index) {
+        checkLength(index, 4);
+        return buffer.getUnsignedInt(valueOffsets[index]);
+    }
+    
+    /**
+     * Read the first 16 bits of an attribute value such as CHANNEL-NUMBER
+     */
+    public int getUnsignedShort(int index) {
+        checkLength(index, 2);
+        return buffer.getUnsignedShort(valueOffsets[index]);
+    }
+    
+    /**
+     * Read the first byte of an attribute value such as REQUESTED-TRANSPORT
+     */
+    public int getUnsignedByte(int index) {
+        checkLength(index, 1);
+        return buffer.getUnsignedByte(valueOffsets[index]);
+    }
+    
+    /**
+     * Check whether an XOR address attribute holds an IPv4 address
+     */
+    public boolean isIPv4Address(int index) {
+        return valueLengths[index] == 8 && buffer.getUnsignedByte(valueOffsets[index] + 1) == FAMILY_IPV4;
+    }
+    
+    /**
+     * Decode the port of an XOR address attribute
+     */
+    public int getXorPort(int index) {
+        checkLength(index, 4);
+        return buffer.getUnsignedShort(valueOffsets[index] + 2) ^ (StunMessage.MAGIC_COOKIE >>> 16);
+    }
+    
+    /**
+     * Decode the IPv4 address of an XOR address attribute into an int, in the same
+     * form as {@link com.example.turnserver.util.NetworkUtils#ipv4ToInt(InetAddress)}
+     */
+    public int getXorIPv4Address(int index) {
+        checkLength(index, 8);
+        return buffer.getInt(valueOffsets[index] + 4) ^ StunMessage.MAGIC_COOKIE;
+    }
+    
+    /**
+     * Decode an XOR address attribute of either family. Allocates the address objects.
+     */
+    public InetSocketAddress getXorAddress(int index) {
+        int offset = valueOffsets[index];
+        int family = valueLengths[index] >= 4 ? buffer.getUnsignedByte(offset + 1) : 0;
+        byte[] addrBytes;
+        if (family == FAMILY_IPV4 && valueLengths[index] == 8) {
+            addrBytes = new byte[4];
+        } else if (family == FAMILY_IPV6 && valueLengths[index] == 20) {
+            addrBytes = new byte[16];
+        } else {
+            throw new IllegalArgumentException("Invalid XOR address attribute");
+        }
+        
+        // The first four address bytes are XORed with the magic cookie, the rest with the transaction ID
+        for (int i = 0; i < 4; i++) {
+            addrBytes[i] = (byte) (buffer.getByte(offset + 4 + i) ^ (StunMessage.MAGIC_COOKIE >> (24 - i * 8)));
+        }
+        int transactionIdIndex = getTransactionIdIndex();
+        for (int i = 4; i < addrBytes.length; i++) {
+            addrBytes[i] = (byte) (buffer.getByte(offset + 4 + i) ^ buffer.getByte(transactionIdIndex + i - 4));
+        }
+        
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(addrBytes), getXorPort(index));
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid IP address", e);
+        }
+    }
+    
+    /**
+     * Get a retained slice of an attribute value; the caller must release it
+     */
+    public ByteBuf retainedValue(int index) {
+        return buffer.retainedSlice(valueOffsets[index], valueLengths[index]);
+    }
+    
+    /**
+     * Decode a UTF-8 attribute value such as USERNAME
+     */
+    public String getValueAsString(int index) {
+        return buffer.toString(valueOffsets[index], valueLengths[index], StandardCharsets.UTF_8);
+    }
+    
+    private void checkLength(int index, int minLength) {
+        if (valueLengths[index] < minLength) {
+            throw new IllegalArgumentException("Attribute value too short");
+        }
+    }
+}
\ No newline at end of file
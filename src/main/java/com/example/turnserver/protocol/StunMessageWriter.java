@@ -0,0 +1,172 @@
+package com.example.turnserver.protocol;
+
+import com.example.turnserver.util.HmacUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Single-pass STUN message encoder writing straight into a ByteBuf.
+ *
+ * The header is reserved up front and its length field is filled in once the attributes
+ * are written. MESSAGE-INTEGRITY and FINGERPRINT are computed over the bytes already in the
+ * buffer, with the length field adjusted first as RFC 5389 sections 15.4 and 15.5 require,
+ * so nothing is serialized twice.
+ */
+public final class StunMessageWriter {
+    
+    private static final int FINGERPRINT_XOR = 0x5354554E;
+    private static final int MESSAGE_INTEGRITY_LENGTH = 20;
+    
+    // Reusable FINGERPRINT checksum, one per thread
+    private static final FastThreadLocal<CRC32> CRC = new FastThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+    
+    private final ByteBuf buffer;
+    private final int start;
+    
+    private StunMessageWriter(ByteBuf buffer, int messageType) {
+        this.buffer = buffer;
+        this.start = buffer.writerIndex();
+        buffer.writeShort(messageType);
+        buffer.writeShort(0);
+        buffer.writeInt(StunMessage.MAGIC_COOKIE);
+    }
+    
+    /**
+     * Start a message with the given transaction ID
+     */
+    public static StunMessageWriter begin(ByteBuf buffer, MessageType messageType, byte[] transactionId) {
+        StunMessageWriter writer = new StunMessageWriter(buffer, messageType.getValue());
+        buffer.writeBytes(transactionId, 0, 12);
+        return writer;
+    }
+    
+    /**
+     * Start a message copying the transaction ID from another buffer, typically the request
+     */
+    public static StunMessageWriter begin(ByteBuf buffer, MessageType messageType, ByteBuf source,
+                                          int transactionIdIndex) {
+        StunMessageWriter writer = new StunMessageWriter(buffer, messageType.getValue());
+        buffer.writeBytes(source, transactionIdIndex, 12);
+        return writer;
+    }
+    
+    /**
+     * Size on the wire of an attribute with the given value length, header and padding included
+     */
+    public static int attributeSize(int valueLength) {
+        return 4 + ((valueLength + 3) & ~3);
+    }
+    
+    /**
+     * Size on the wire of MESSAGE-INTEGRITY
+     */
+    public static int messageIntegritySize() {
+        return attributeSize(MESSAGE_INTEGRITY_LENGTH);
+    }
+    
+    /**
+     * Size on the wire of FINGERPRINT
+     */
+    public static int fingerprintSize() {
+        return attributeSize(4);
+    }
+    
+    public StunMessageWriter attribute(StunAttribute attribute) {
+        return attribute(attribute.getType(), attribute.rawValue());
+    }
+    
+    public StunMessageWriter attribute(AttributeType type, byte[] value) {
+        buffer.writeShort(type.getValue());
+        buffer.writeShort(value.length);
+        buffer.writeBytes(value);
+        return pad(value.length);
+    }
+    
+    public StunMessageWriter stringAttribute(AttributeType type, String value) {
+        return attribute(type, value.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Write a 32-bit attribute such as LIFETIME
+     */
+    public StunMessageWriter intAttribute(AttributeType type, int value) {
+        buffer.writeShort(type.getValue());
+        buffer.writeShort(4);
+        buffer.writeInt(value);
+        return this;
+    }
+    
+    public StunMessageWriter xorAddress(AttributeType type, InetSocketAddress address) {
+        StunUtils.writeXorAddressAttribute(buffer, type, address, start + 8);
+        return this;
+    }
+    
+    public StunMessageWriter errorCode(int errorCode, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        buffer.writeShort(AttributeType.ERROR_CODE.getValue());
+        buffer.writeShort(4 + reasonBytes.length);
+        buffer.writeShort(0);
+        buffer.writeByte(errorCode / 100);
+        buffer.writeByte(errorCode % 100);
+        buffer.writeBytes(reasonBytes);
+        return pad(4 + reasonBytes.length);
+    }
+    
+    /**
+     * Append MESSAGE-INTEGRITY: HMAC-SHA1 over the message so far, with the header length
+     * already counting the MESSAGE-INTEGRITY attribute
+     */
+    public StunMessageWriter messageIntegrity(byte[] key) {
+        setLength(bodyLength() + messageIntegritySize());
+        int covered = buffer.writerIndex() - start;
+        buffer.writeShort(AttributeType.MESSAGE_INTEGRITY.getValue());
+        buffer.writeShort(MESSAGE_INTEGRITY_LENGTH);
+        HmacUtils.writeHmacSha1(buffer, start, covered, key);
+        return this;
+    }
+    
+    /**
+     * Append FINGERPRINT: CRC-32 over the message so far XORed with 0x5354554e, with the
+     * header length already counting the FINGERPRINT attribute
+     */
+    public StunMessageWriter fingerprint() {
+        setLength(bodyLength() + fingerprintSize());
+        CRC32 crc = CRC.get();
+        crc.reset();
+        crc.update(buffer.nioBuffer(start, buffer.writerIndex() - start));
+        buffer.writeShort(AttributeType.FINGERPRINT.getValue());
+        buffer.writeShort(4);
+        buffer.writeInt((int) crc.getValue() ^ FINGERPRINT_XOR);
+        return this;
+    }
+    
+    /**
+     * Complete the message
+     */
+    public ByteBuf finish() {
+        setLength(bodyLength());
+        return buffer;
+    }
+    
+    private StunMessageWriter pad(int valueLength) {
+        buffer.writeZero((4 - (valueLength & 3)) & 3);
+        return this;
+    }
+    
+    private int bodyLength() {
+        return buffer.writerIndex() - start - StunMessage.HEADER_LENGTH;
+    }
+    
+    private void setLength(int length) {
+        buffer.setShort(start + 2, length);
+    }
+}
\ No newline at end of file
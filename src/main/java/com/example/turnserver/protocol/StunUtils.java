@@ -1,7 +1,7 @@
 package com.example.turnserver.protocol;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -9,6 +9,7 @@ import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Utility class for STUN/TURN message parsing and creation
@@ -18,90 +19,123 @@ public class StunUtils {
     private static final SecureRandom RANDOM = new SecureRandom();
     
     /**
-     * Parse a STUN message from a ByteBuf
+     * Build a STUN message from an indexed datagram. The message keeps a reference to the
+     * view, so MESSAGE-INTEGRITY can later be checked against the bytes as received.
      */
-    public static StunMessage parseMessage(ByteBuf buffer) {
-        if (buffer.readableBytes() < StunMessage.HEADER_LENGTH) {
-            throw new IllegalArgumentException("Buffer too small for STUN header");
-        }
-        
-        // Read message type
-        int messageTypeValue = buffer.readUnsignedShort();
-        MessageType messageType = MessageType.fromValue(messageTypeValue);
-        
-        // Read message length
-        int messageLength = buffer.readUnsignedShort();
+    public static StunMessage parseMessage(StunMessageView view) {
+        ByteBuf buffer = view.getBuffer();
         
-        // Read magic cookie
-        int magicCookie = buffer.readInt();
-        if (magicCookie != StunMessage.MAGIC_COOKIE) {
-            throw new IllegalArgumentException("Invalid magic cookie: " + Integer.toHexString(magicCookie));
-        }
-        
-        // Read transaction ID
         byte[] transactionId = new byte[12];
-        buffer.readBytes(transactionId);
+        buffer.getBytes(view.getTransactionIdIndex(), transactionId);
         
-        StunMessage message = new StunMessage(messageType, transactionId);
+        StunMessage message = new StunMessage(MessageType.fromValue(view.getMessageType()), transactionId);
+        message.setSource(view);
         
-        // Parse attributes
-        int remainingLength = messageLength;
-        while (remainingLength > 0 && buffer.readableBytes() >= 4) {
-            int attrType = buffer.readUnsignedShort();
-            int attrLength = buffer.readUnsignedShort();
-            
-            AttributeType attributeType = AttributeType.fromValue(attrType);
-            
-            if (buffer.readableBytes() < attrLength) {
-                throw new IllegalArgumentException("Not enough bytes for attribute value");
-            }
-            
-            byte[] value = new byte[attrLength];
-            buffer.readBytes(value);
-            
+        for (int i = 0; i < view.getAttributeCount(); i++) {
+            AttributeType attributeType = AttributeType.fromValue(view.getAttributeType(i));
             if (attributeType != null) {
+                byte[] value = new byte[view.getValueLength(i)];
+                buffer.getBytes(view.getValueOffset(i), value);
                 message.addAttribute(new StunAttribute(attributeType, value));
             }
-            
-            // Skip padding
-            int padding = (4 - (attrLength % 4)) % 4;
-            buffer.skipBytes(Math.min(padding, buffer.readableBytes()));
-            
-            remainingLength -= 4 + attrLength + padding;
         }
         
         return message;
     }
     
     /**
-     * Encode a STUN message to a ByteBuf
+     * Encode a STUN message in a single pass into an exactly sized buffer from the allocator.
+     * MESSAGE-INTEGRITY and FINGERPRINT are appended in place when the message asks for them.
      */
-    public static ByteBuf encodeMessage(StunMessage message) {
-        int messageLength = message.calculateLength();
-        ByteBuf buffer = Unpooled.buffer(StunMessage.HEADER_LENGTH + messageLength);
+    public static ByteBuf encodeMessage(ByteBufAllocator alloc, StunMessage message) {
+        byte[] integrityKey = message.getIntegrityKey();
+        int size = StunMessage.HEADER_LENGTH + message.calculateLength()
+                + (integrityKey != null ? StunMessageWriter.messageIntegritySize() : 0)
+                + (message.hasFingerprint() ? StunMessageWriter.fingerprintSize() : 0);
         
-        // Write header
-        buffer.writeShort(message.getMessageType().getValue());
+        ByteBuf buffer = alloc.ioBuffer(size);
+        StunMessageWriter writer = StunMessageWriter.begin(buffer, message.getMessageType(), message.transactionId());
+        for (StunAttribute attr : message.attributes()) {
+            writer.attribute(attr);
+        }
+        if (integrityKey != null) {
+            writer.messageIntegrity(integrityKey);
+        }
+        if (message.hasFingerprint()) {
+            writer.fingerprint();
+        }
+        return writer.finish();
+    }
+    
+    /**
+     * Encode a Data indication carrying the given peer payload.
+     * The message is written in a single pass into a buffer from the given allocator.
+     */
+    public static ByteBuf encodeDataIndication(ByteBufAllocator alloc, InetSocketAddress peer, ByteBuf data) {
+        boolean isIPv6 = peer.getAddress() instanceof java.net.Inet6Address;
+        int dataLength = data.readableBytes();
+        int padding = (4 - (dataLength % 4)) % 4;
+        int messageLength = 4 + (isIPv6 ? 20 : 8) + 4 + dataLength + padding;
+        
+        ByteBuf buffer = alloc.ioBuffer(StunMessage.HEADER_LENGTH + messageLength);
+        int start = buffer.writerIndex();
+        
+        // Header with a random transaction ID (indications are never retransmitted)
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        buffer.writeShort(MessageType.DATA_INDICATION.getValue());
         buffer.writeShort(messageLength);
         buffer.writeInt(StunMessage.MAGIC_COOKIE);
-        buffer.writeBytes(message.getTransactionId());
+        buffer.writeInt(random.nextInt());
+        buffer.writeLong(random.nextLong());
         
-        // Write attributes
-        for (StunAttribute attr : message.getAttributes()) {
-            buffer.writeShort(attr.getType().getValue());
-            buffer.writeShort(attr.getLength());
-            buffer.writeBytes(attr.getValue());
-            
-            // Add padding
-            int padding = (4 - (attr.getLength() % 4)) % 4;
-            for (int i = 0; i < padding; i++) {
-                buffer.writeByte(0);
-            }
-        }
+        writeXorAddressAttribute(buffer, AttributeType.XOR_PEER_ADDRESS, peer, start + 8);
+        
+        buffer.writeShort(AttributeType.DATA.getValue());
+        buffer.writeShort(dataLength);
+        buffer.writeBytes(data, data.readerIndex(), dataLength);
+        buffer.writeZero(padding);
         
         return buffer;
     }
     
+    /**
+     * Encode a ChannelData message (RFC 5766 section 11.4).
+     * No padding is added since ChannelData is only sent over UDP.
+     */
+    public static ByteBuf encodeChannelData(ByteBufAllocator alloc, int channelNumber, ByteBuf data) {
+        int dataLength = data.readableBytes();
+        ByteBuf buffer = alloc.ioBuffer(4 + dataLength);
+        buffer.writeShort(channelNumber);
+        buffer.writeShort(dataLength);
+        buffer.writeBytes(data, data.readerIndex(), dataLength);
+        return buffer;
+    }
+    
+    /**
+     * Write an XOR address attribute straight into a buffer that already holds
+     * the message header. The transaction ID is read back from transactionIdIndex.
+     */
+    public static void writeXorAddressAttribute(ByteBuf buffer, AttributeType type, InetSocketAddress address,
+                                                int transactionIdIndex) {
+        byte[] addrBytes = address.getAddress().getAddress();
+        boolean isIPv6 = addrBytes.length == 16;
+        
+        buffer.writeShort(type.getValue());
+        buffer.writeShort(isIPv6 ? 20 : 8);
+        buffer.writeByte(0);
+        buffer.writeByte(isIPv6 ? 0x02 : 0x01);
+        buffer.writeShort(address.getPort() ^ (StunMessage.MAGIC_COOKIE >>> 16));
+        
+        // The first four address bytes are XORed with the magic cookie
+        for (int i = 0; i < 4; i++) {
+            buffer.writeByte(addrBytes[i] ^ (StunMessage.MAGIC_COOKIE >> (24 - i * 8)));
+        }
+        // The remaining IPv6 bytes are XORed with the transaction ID
+        for (int i = 4; i < addrBytes.length; i++) {
+            buffer.writeByte(addrBytes[i] ^ buffer.getByte(transactionIdIndex + i - 4));
+        }
+    }
+    
     /**
      * Generate a random transaction ID
      */
@@ -155,6 +189,18 @@ public class StunUtils {
         return new StunAttribute(AttributeType.ERROR_CODE, value);
     }
     
+    /**
+     * Create a RESERVATION-TOKEN attribute
+     */
+    public static StunAttribute createReservationTokenAttribute(long token) {
+        byte[] value = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            value[i] = (byte) (token & 0xFF);
+            token >>>= 8;
+        }
+        return new StunAttribute(AttributeType.RESERVATION_TOKEN, value);
+    }
+    
     /**
      * Create a LIFETIME attribute
      */
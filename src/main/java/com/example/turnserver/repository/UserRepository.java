@@ -6,6 +6,7 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -20,6 +21,11 @@ public interface UserRepository extends JpaRepository<User, Long> {
      */
     Optional<User> findByUsername(String username);
     
+    /**
+     * Find the users of several usernames in one query
+     */
+    List<User> findByUsernameIn(Collection<String> usernames);
+    
     /**
      * Check if username exists
      */
@@ -46,6 +52,12 @@ public interface UserRepository extends JpaRepository<User, Long> {
     @Query("SELECT COUNT(u) FROM User u WHERE u.enabled = true")
     long countActiveUsers();
     
+    /**
+     * Get every username, for the username filter
+     */
+    @Query("SELECT u.username FROM User u")
+    List<String> findAllUsernames();
+    
     /**
      * Find users by username pattern (case-insensitive)
      */
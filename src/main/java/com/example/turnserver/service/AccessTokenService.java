@@ -0,0 +1,219 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.util.CryptoUtils;
+import com.example.turnserver.util.HmacUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Self-contained OAuth access tokens for third-party authorization (RFC 7635).
+ *
+ * The client sends the token in ACCESS-TOKEN and the key ID in USERNAME. The token is
+ * AES-GCM encrypted by the authorization server under a key shared with this server through
+ * the local key table, with the server name as associated data:
+ *
+ *   nonce_length (2) | nonce | encrypted { key_length (2) | mac_key | timestamp (8) | lifetime (4) } | tag
+ *
+ * The decrypted mac_key is the MESSAGE-INTEGRITY key, so no user is ever looked up.
+ * Decrypted tokens are cached by token hash until they expire, which lets retransmits and
+ * Refreshes skip the AES work.
+ */
+@Service
+public class AccessTokenService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(AccessTokenService.class);
+    
+    // Tolerated clock skew with the authorization server
+    private static final long MAX_CLOCK_SKEW_SECONDS = 30;
+    
+    private final boolean enabled;
+    private final Map<String, SecretKey> keyTable = new HashMap<>();
+    private final byte[] serverName;
+    private final String authorizationServer;
+    private final int maxCacheSize;
+    
+    private final Map<ByteBuffer, AccessToken> tokens = new ConcurrentHashMap<>();
+    
+    private final Counter hits;
+    private final Counter misses;
+    
+    @Autowired
+    public AccessTokenService(MeterRegistry meterRegistry,
+                              @Value("${turn.server.oauth.enabled:false}") boolean enabled,
+                              @Value("${turn.server.oauth.keys:}") String keys,
+                              @Value("${turn.server.oauth.server-name:${turn.server.realm:turn.example.com}}") String serverName,
+                              @Value("${turn.server.oauth.authorization-server:}") String authorizationServer,
+                              @Value("${turn.server.oauth.token-cache.max-size:10000}") int maxCacheSize) {
+        this.enabled = enabled;
+        this.serverName = serverName.getBytes(StandardCharsets.UTF_8);
+        this.authorizationServer = authorizationServer;
+        this.maxCacheSize = maxCacheSize;
+        
+        // Key table entries are kid:base64-key
+        for (String entry : keys.split(",")) {
+            int separator = entry.indexOf(':');
+            if (separator > 0) {
+                keyTable.put(entry.substring(0, separator).trim(),
+                             CryptoUtils.createAESKey(CryptoUtils.base64ToBytes(entry.substring(separator + 1).trim())));
+            }
+        }
+        if (enabled) {
+            logger.info("Third-party authorization enabled with {} key(s)", keyTable.size());
+        }
+        
+        this.hits = Counter.builder("turn.auth.access.token.cache")
+                .description("Access token lookups")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.misses = Counter.builder("turn.auth.access.token.cache")
+                .description("Access token lookups")
+                .tag("result", "miss")
+                .register(meterRegistry);
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Get the authorization server to advertise in THIRD-PARTY-AUTHORIZATION, or an empty string
+     */
+    public String getAuthorizationServer() {
+        return authorizationServer;
+    }
+    
+    /**
+     * Decrypt and check an access token
+     *
+     * @param keyId the key ID sent in USERNAME
+     * @return the token, or null if it is unknown, forged or expired
+     */
+    public AccessToken validateToken(String keyId, byte[] token) {
+        if (!enabled) {
+            return null;
+        }
+        
+        ByteBuffer hash = ByteBuffer.wrap(HmacUtils.calculateSha256(token));
+        long now = System.currentTimeMillis() / 1000;
+        
+        AccessToken cached = tokens.get(hash);
+        if (cached != null) {
+            if (cached.expiresAt > now && cached.keyId.equals(keyId)) {
+                hits.increment();
+                return cached;
+            }
+            if (cached.expiresAt <= now) {
+                tokens.remove(hash, cached);
+            }
+        }
+        
+        misses.increment();
+        AccessToken decrypted = decrypt(keyId, token, now);
+        if (decrypted != null) {
+            if (tokens.size() >= maxCacheSize) {
+                evictOne();
+            }
+            tokens.put(hash, decrypted);
+        }
+        return decrypted;
+    }
+    
+    private AccessToken decrypt(String keyId, byte[] token, long now) {
+        SecretKey key = keyTable.get(keyId);
+        if (key == null) {
+            logger.debug("Unknown access token key ID: {}", keyId);
+            return null;
+        }
+        
+        ByteBuffer buffer = ByteBuffer.wrap(token);
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int nonceLength = buffer.getShort() & 0xFFFF;
+        if (nonceLength == 0 || buffer.remaining() < nonceLength) {
+            return null;
+        }
+        byte[] nonce = new byte[nonceLength];
+        buffer.get(nonce);
+        
+        byte[] block = CryptoUtils.decryptAESGCM(token, buffer.position(), buffer.remaining(), key, nonce, serverName);
+        if (block == null) {
+            logger.debug("Access token failed authentication for key ID: {}", keyId);
+            return null;
+        }
+        
+        ByteBuffer plain = ByteBuffer.wrap(block);
+        if (plain.remaining() < 2) {
+            return null;
+        }
+        int macKeyLength = plain.getShort() & 0xFFFF;
+        if (plain.remaining() != macKeyLength + 12) {
+            return null;
+        }
+        byte[] macKey = new byte[macKeyLength];
+        plain.get(macKey);
+        
+        // 48 bits of seconds and 16 bits of fraction
+        long issuedAt = plain.getLong() >>> 16;
+        long lifetime = plain.getInt() & 0xFFFFFFFFL;
+        long expiresAt = issuedAt + lifetime;
+        if (issuedAt > now + MAX_CLOCK_SKEW_SECONDS || expiresAt <= now) {
+            logger.debug("Access token for key ID {} is expired or not yet valid", keyId);
+            return null;
+        }
+        
+        return new AccessToken(keyId, macKey, expiresAt);
+    }
+    
+    // The cache only bounds memory, so dropping an arbitrary entry is good enough
+    private void evictOne() {
+        Iterator<ByteBuffer> iterator = tokens.keySet().iterator();
+        if (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+    
+    /**
+     * Decrypted access token
+     */
+    public static final class AccessToken {
+        
+        private final String keyId;
+        private final byte[] macKey;
+        private final long expiresAt;
+        
+        AccessToken(String keyId, byte[] macKey, long expiresAt) {
+            this.keyId = keyId;
+            this.macKey = macKey;
+            this.expiresAt = expiresAt;
+        }
+        
+        /**
+         * Get the MESSAGE-INTEGRITY key. The array is shared and must not be modified.
+         */
+        public byte[] getMacKey() {
+            return macKey;
+        }
+        
+        /**
+         * Get the expiry as a Unix timestamp
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,271 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.model.Allocation;
+import com.example.turnserver.model.RelayAllocation;
+import com.example.turnserver.model.TurnSession;
+import com.example.turnserver.service.PersistenceWriter.Mutation;
+import com.example.turnserver.util.CryptoUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authoritative in-memory store of TURN allocations and sessions.
+ *
+ * Allocations are indexed by 5-tuple, relayed transport address, allocation ID and username. The server
+ * transport address and the protocol are the same for every allocation (one UDP listen
+ * address), so the 5-tuple index is keyed by the client transport address alone, which is what
+ * the packet path already has in hand. Lookups are lock-free; additions and removals take the
+ * registry lock so that all indexes change together.
+ *
+ * Sessions expire on the {@link ExpiryWheel} at the end of their lifetime.
+ *
+ * Every change is mirrored to SQLite through the {@link PersistenceWriter}, which keeps the
+ * allocations and turn_sessions tables as a record for the statistics API without putting a
+ * database round trip on the request path. Allocations do not survive a restart, so rows left
+ * by a previous run are deleted on startup.
+ */
+@Service
+public class AllocationRegistry {
+    
+    private static final Logger logger = LoggerFactory.getLogger(AllocationRegistry.class);
+    
+    private static final long SESSION_LIFETIME_MINUTES = 30;
+    
+    private static final String INSERT_ALLOCATION =
+        "INSERT INTO allocations (allocation_id, session_id, username, relay_address, relay_port, client_address, "
+        + "client_port, transport_protocol, lifetime_seconds, created_at, expires_at, last_refresh) "
+        + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String REFRESH_ALLOCATION =
+        "UPDATE allocations SET lifetime_seconds = ?, expires_at = ?, last_refresh = ?, "
+        + "bytes_relayed = ?, packets_relayed = ?, permissions_count = ? WHERE allocation_id = ?";
+    private static final String UPDATE_ALLOCATION_COUNTERS =
+        "UPDATE allocations SET bytes_relayed = ?, packets_relayed = ?, permissions_count = ? WHERE allocation_id = ?";
+    private static final String DELETE_ALLOCATION = "DELETE FROM allocations WHERE allocation_id = ?";
+    private static final String DELETE_EXPIRED_ALLOCATIONS = "DELETE FROM allocations WHERE expires_at <= ?";
+    private static final String DELETE_ALL_ALLOCATIONS = "DELETE FROM allocations";
+    
+    private static final String INSERT_SESSION =
+        "INSERT INTO turn_sessions (session_id, username, client_address, client_port, realm, "
+        + "created_at, last_activity, expires_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_SESSION_ACTIVITY = "UPDATE turn_sessions SET last_activity = ? WHERE session_id = ?";
+    private static final String DELETE_SESSION = "DELETE FROM turn_sessions WHERE session_id = ?";
+    private static final String DELETE_EXPIRED_SESSIONS = "DELETE FROM turn_sessions WHERE expires_at <= ?";
+    private static final String DELETE_ALL_SESSIONS = "DELETE FROM turn_sessions";
+    
+    private final PersistenceWriter persistenceWriter;
+    private final ExpiryWheel expiryWheel;
+    private final String realm;
+    
+    private final Object lock = new Object();
+    
+    private final Map<InetSocketAddress, RelayAllocation> allocationsByFiveTuple = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, RelayAllocation> allocationsByRelayAddress = new ConcurrentHashMap<>();
+    private final Map<String, RelayAllocation> allocationsById = new ConcurrentHashMap<>();
+    private final Map<String, Set<RelayAllocation>> allocationsByUsername = new ConcurrentHashMap<>();
+    
+    // One session per client transport address
+    private final Map<InetSocketAddress, TurnSession> sessions = new ConcurrentHashMap<>();
+    
+    @Autowired
+    public AllocationRegistry(PersistenceWriter persistenceWriter,
+                              ExpiryWheel expiryWheel,
+                              @Value("${turn.server.realm:turn.example.com}") String realm) {
+        this.persistenceWriter = persistenceWriter;
+        this.expiryWheel = expiryWheel;
+        this.realm = realm;
+    }
+    
+    @PostConstruct
+    public void clearStaleRecords() {
+        persistenceWriter.submitBlocking(Mutation.of(DELETE_ALL_ALLOCATIONS));
+        persistenceWriter.submitBlocking(Mutation.of(DELETE_ALL_SESSIONS));
+    }
+    
+    /**
+     * Find the allocation of a client transport address
+     */
+    public RelayAllocation findByFiveTuple(InetSocketAddress clientAddress) {
+        return allocationsByFiveTuple.get(clientAddress);
+    }
+    
+    public RelayAllocation findByRelayAddress(InetSocketAddress relayAddress) {
+        return allocationsByRelayAddress.get(relayAddress);
+    }
+    
+    public RelayAllocation findByAllocationId(String allocationId) {
+        return allocationsById.get(allocationId);
+    }
+    
+    public Collection<RelayAllocation> findByUsername(String username) {
+        Set<RelayAllocation> allocations = allocationsByUsername.get(username);
+        return allocations != null ? Collections.unmodifiableSet(allocations) : Collections.emptySet();
+    }
+    
+    public Collection<RelayAllocation> getAllocations() {
+        return allocationsById.values();
+    }
+    
+    public int getAllocationCount() {
+        return allocationsById.size();
+    }
+    
+    public int getSessionCount() {
+        return sessions.size();
+    }
+    
+    /**
+     * Add an allocation and persist its record
+     *
+     * @return false if the client already has an allocation or the relayed address is taken
+     */
+    public boolean add(RelayAllocation relay, Allocation record) {
+        synchronized (lock) {
+            if (allocationsByFiveTuple.containsKey(relay.getClientAddress())
+                    || allocationsByRelayAddress.containsKey(relay.getRelayAddress())) {
+                return false;
+            }
+            allocationsByFiveTuple.put(relay.getClientAddress(), relay);
+            allocationsByRelayAddress.put(relay.getRelayAddress(), relay);
+            allocationsById.put(relay.getAllocationId(), relay);
+            allocationsByUsername.computeIfAbsent(relay.getUsername(), username -> ConcurrentHashMap.newKeySet())
+                    .add(relay);
+        }
+        
+        LocalDateTime now = LocalDateTime.now();
+        persistenceWriter.submit(Mutation.of(INSERT_ALLOCATION,
+            record.getAllocationId(), record.getSessionId(), record.getUsername(),
+            record.getRelayAddress(), record.getRelayPort(), record.getClientAddress(), record.getClientPort(),
+            record.getTransportProtocol(), record.getLifetimeSeconds(), now, record.getExpiresAt(), now));
+        return true;
+    }
+    
+    /**
+     * Remove an allocation and delete its record
+     *
+     * @return false if the allocation was already removed
+     */
+    public boolean remove(RelayAllocation relay) {
+        synchronized (lock) {
+            if (!allocationsById.remove(relay.getAllocationId(), relay)) {
+                return false;
+            }
+            allocationsByFiveTuple.remove(relay.getClientAddress(), relay);
+            allocationsByRelayAddress.remove(relay.getRelayAddress(), relay);
+            Set<RelayAllocation> userAllocations = allocationsByUsername.get(relay.getUsername());
+            if (userAllocations != null) {
+                userAllocations.remove(relay);
+                if (userAllocations.isEmpty()) {
+                    allocationsByUsername.remove(relay.getUsername());
+                }
+            }
+        }
+        
+        persistenceWriter.submit(Mutation.of(DELETE_ALLOCATION, relay.getAllocationId()));
+        return true;
+    }
+    
+    /**
+     * Persist a refreshed lifetime together with the current relay counters.
+     * Must be called on the event loop of the relay.
+     */
+    public void refreshed(RelayAllocation relay, int lifetimeSeconds) {
+        LocalDateTime now = LocalDateTime.now();
+        persistenceWriter.submit(Mutation.of(REFRESH_ALLOCATION,
+            lifetimeSeconds, now.plusSeconds(lifetimeSeconds), now,
+            relay.getBytesRelayed(), relay.getPacketsRelayed(), relay.getPermissionCount(), relay.getAllocationId()));
+    }
+    
+    /**
+     * Persist the current relay counters. Must be called on the event loop of the relay.
+     */
+    public void countersChanged(RelayAllocation relay) {
+        persistenceWriter.submit(Mutation.of(UPDATE_ALLOCATION_COUNTERS,
+            relay.getBytesRelayed(), relay.getPacketsRelayed(), relay.getPermissionCount(), relay.getAllocationId()));
+    }
+    
+    /**
+     * Get the live session of a client transport address, or start one
+     */
+    public TurnSession getOrCreateSession(String username, String clientAddress, int clientPort) {
+        InetSocketAddress key = new InetSocketAddress(clientAddress, clientPort);
+        TurnSession existing = sessions.get(key);
+        if (existing != null && existing.getUsername().equals(username) && !existing.isExpired()) {
+            existing.updateActivity();
+            persistenceWriter.submit(Mutation.of(UPDATE_SESSION_ACTIVITY,
+                existing.getLastActivity(), existing.getSessionId()));
+            return existing;
+        }
+        
+        TurnSession session = new TurnSession(CryptoUtils.generateSessionId(), username, clientAddress, clientPort);
+        session.setRealm(realm);
+        session.setExpiresAt(LocalDateTime.now().plusMinutes(SESSION_LIFETIME_MINUTES));
+        session.setCreatedAt(LocalDateTime.now());
+        session.updateActivity();
+        TurnSession replaced = sessions.put(key, session);
+        if (replaced != null) {
+            // An expired session, or one of another user, on the same client transport address
+            persistenceWriter.submit(Mutation.of(DELETE_SESSION, replaced.getSessionId()));
+        }
+        expiryWheel.schedule(() -> checkSessionExpiry(key, session), SESSION_LIFETIME_MINUTES, TimeUnit.MINUTES);
+        
+        persistenceWriter.submit(Mutation.of(INSERT_SESSION,
+            session.getSessionId(), username, clientAddress, clientPort, realm,
+            session.getCreatedAt(), session.getLastActivity(), session.getExpiresAt()));
+        
+        logger.info("Created new session {} for user {}", session.getSessionId(), username);
+        return session;
+    }
+    
+    /**
+     * Drop expired sessions and purge expired rows from the database
+     *
+     * @return the number of sessions dropped
+     */
+    public int removeExpiredSessions() {
+        int removed = 0;
+        for (Map.Entry<InetSocketAddress, TurnSession> entry : sessions.entrySet()) {
+            if (entry.getValue().isExpired() && sessions.remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        
+        LocalDateTime now = LocalDateTime.now();
+        persistenceWriter.submitBlocking(Mutation.of(DELETE_EXPIRED_SESSIONS, now));
+        persistenceWriter.submitBlocking(Mutation.of(DELETE_EXPIRED_ALLOCATIONS, now));
+        return removed;
+    }
+    
+    /**
+     * Session timeout: drops the session once it lapsed, or re-arms itself for the remaining
+     * time if it was extended meanwhile. A session already replaced or removed only has its
+     * row deleted.
+     */
+    private void checkSessionExpiry(InetSocketAddress key, TurnSession session) {
+        if (sessions.get(key) != session) {
+            persistenceWriter.submit(Mutation.of(DELETE_SESSION, session.getSessionId()));
+            return;
+        }
+        
+        long remainingMillis = Duration.between(LocalDateTime.now(), session.getExpiresAt()).toMillis();
+        if (remainingMillis > 0) {
+            expiryWheel.schedule(() -> checkSessionExpiry(key, session), remainingMillis, TimeUnit.MILLISECONDS);
+        } else if (sessions.remove(key, session)) {
+            persistenceWriter.submit(Mutation.of(DELETE_SESSION, session.getSessionId()));
+            logger.debug("Session {} expired", session.getSessionId());
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package com.example.turnserver.service;
 
 import com.example.turnserver.exception.AuthenticationException;
-import com.example.turnserver.model.User;
 import com.example.turnserver.protocol.AttributeType;
 import com.example.turnserver.protocol.StunAttribute;
 import com.example.turnserver.protocol.StunMessage;
+import com.example.turnserver.protocol.StunMessageView;
 import com.example.turnserver.util.CryptoUtils;
 import com.example.turnserver.util.HmacUtils;
 import org.slf4j.Logger;
@@ -13,9 +13,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Service for handling TURN server authentication
@@ -26,30 +25,47 @@ public class AuthService {
     private static final Logger logger = LoggerFactory.getLogger(AuthService.class);
     
     private final UserService userService;
+    private final CredentialCache credentialCache;
+    private final NonceService nonceService;
+    private final AccessTokenService accessTokenService;
     private final String realm;
     private final String secret;
-    
-    // Cache for nonces to prevent replay attacks
-    private final Map<String, Long> nonceCache = new ConcurrentHashMap<>();
-    private static final long NONCE_VALIDITY_SECONDS = 300; // 5 minutes
-    private static final long NONCE_CLEANUP_INTERVAL = 60000; // 1 minute
+    private final long shortTermCredentialLifetimeSeconds;
     
     @Autowired
     public AuthService(UserService userService,
+                       CredentialCache credentialCache,
+                       NonceService nonceService,
+                       AccessTokenService accessTokenService,
                        @Value("${turn.server.realm:turn.example.com}") String realm,
-                       @Value("${turn.server.secret:myTurnSecret123}") String secret) {
+                       @Value("${turn.server.secret:myTurnSecret123}") String secret,
+                       @Value("${turn.server.rest-api.lifetime-seconds:86400}") long shortTermCredentialLifetimeSeconds) {
         this.userService = userService;
+        this.credentialCache = credentialCache;
+        this.nonceService = nonceService;
+        this.accessTokenService = accessTokenService;
         this.realm = realm;
         this.secret = secret;
-        
-        // Start nonce cleanup task
-        startNonceCleanupTask();
+        this.shortTermCredentialLifetimeSeconds = shortTermCredentialLifetimeSeconds;
+    }
+    
+    /**
+     * Validate the NONCE of a request. Done once per request; the result is passed on to
+     * {@link #loadCredential}, {@link #authenticateMessage} and {@link #createAuthenticationChallenge}.
+     */
+    public NonceService.Status checkNonce(StunMessage message, String clientAddress) {
+        StunAttribute nonceAttr = message.getAttribute(AttributeType.NONCE);
+        return nonceAttr != null
+                ? nonceService.validateNonce(nonceAttr.getValueAsString(), clientAddress)
+                : NonceService.Status.INVALID;
     }
     
     /**
-     * Authenticate a STUN/TURN message
+     * Authenticate a STUN/TURN message.
+     * On success the key that verified MESSAGE-INTEGRITY is set as the integrity key of the
+     * message, for {@link #signMessage(StunMessage, StunMessage)}.
      */
-    public boolean authenticateMessage(StunMessage message, String clientAddress) {
+    public boolean authenticateMessage(StunMessage message, String clientAddress, NonceService.Status nonceStatus) {
         logger.debug("Authenticating message for client: {}", clientAddress);
         
         try {
@@ -62,34 +78,50 @@ public class AuthService {
             
             String username = usernameAttr.getValueAsString();
             
-            // Check for MESSAGE-INTEGRITY attribute
-            StunAttribute messageIntegrityAttr = message.getAttribute(AttributeType.MESSAGE_INTEGRITY);
-            if (messageIntegrityAttr == null) {
+            // Check for MESSAGE-INTEGRITY attribute in the received datagram
+            StunMessageView source = message.getSource();
+            int integrityAttr = source != null ? source.indexOf(AttributeType.MESSAGE_INTEGRITY) : -1;
+            if (integrityAttr < 0) {
                 logger.debug("No MESSAGE-INTEGRITY attribute found");
                 return false;
             }
             
-            // Verify user exists and is active
-            Optional<User> userOpt = userService.findUserByUsername(username);
-            if (!userOpt.isPresent() || !userOpt.get().getEnabled()) {
-                logger.warn("User not found or disabled: {}", username);
+            // Check the nonce before spending a credential lookup on the request
+            if (nonceStatus != NonceService.Status.VALID) {
+                logger.debug("Missing, invalid or stale nonce from client: {}", clientAddress);
                 return false;
             }
             
-            User user = userOpt.get();
-            
-            // Generate key for long-term credentials
-            byte[] key = HmacUtils.generateLongTermKey(username, realm, extractPasswordFromHash(user.getPassword()));
+            // Third-party authorization: USERNAME carries the key ID of the access token
+            StunAttribute tokenAttr = message.getAttribute(AttributeType.ACCESS_TOKEN);
+            if (tokenAttr != null) {
+                return authenticateAccessToken(message, source, integrityAttr, username, tokenAttr.getValue());
+            }
             
-            // Create message without MESSAGE-INTEGRITY for verification
-            byte[] messageBytes = createMessageBytesForIntegrityCheck(message);
+            // Verify user exists and is active
+            CredentialCache.Credential credential = credentialCache.get(username);
+            if (credential == null || !credential.isEnabled()) {
+                logger.warn("User not found or disabled: {}", username);
+                return false;
+            }
             
-            // Verify MESSAGE-INTEGRITY
-            boolean isValid = HmacUtils.verifyStunMessageIntegrity(messageBytes, key, messageIntegrityAttr.getValue());
+            // Verify MESSAGE-INTEGRITY over the bytes as received, against each candidate key
+            int integrityIndex = source.getValueOffset(integrityAttr) - 4;
+            int keyIndex = -1;
+            for (int i = 0; i < credential.getKeyCount() && keyIndex < 0; i++) {
+                if (HmacUtils.verifyStunMessageIntegrity(source.getBuffer(), source.getStart(), integrityIndex,
+                                                         credential.getKey(i))) {
+                    keyIndex = i;
+                }
+            }
             
-            if (isValid) {
+            if (keyIndex >= 0) {
                 logger.debug("Authentication successful for user: {}", username);
-                userService.updateLastLogin(username);
+                credentialCache.verified(username, credential, keyIndex);
+                message.setIntegrityKey(credential.getKey(keyIndex));
+                if (!credential.isEphemeral()) {
+                    userService.updateLastLogin(username);
+                }
                 return true;
             } else {
                 logger.warn("MESSAGE-INTEGRITY verification failed for user: {}", username);
@@ -103,14 +135,36 @@ public class AuthService {
     }
     
     /**
-     * Generate authentication challenge for unauthorized requests
+     * Start loading the credential a request will be authenticated with, if it is not cached.
+     * The request should be processed once the returned future completes, on any outcome.
+     *
+     * @return the pending load, or null if the request can be processed right away
+     */
+    public CompletableFuture<?> loadCredential(StunMessage message, NonceService.Status nonceStatus) {
+        StunAttribute usernameAttr = message.getAttribute(AttributeType.USERNAME);
+        if (usernameAttr == null || message.getAttribute(AttributeType.ACCESS_TOKEN) != null) {
+            return null;
+        }
+        
+        // Requests failing the nonce check are challenged without a lookup
+        if (nonceStatus != NonceService.Status.VALID) {
+            return null;
+        }
+        return credentialCache.load(usernameAttr.getValueAsString());
+    }
+    
+    /**
+     * Generate authentication challenge for unauthorized requests.
+     * A request carrying an authentic but expired nonce gets 438 Stale Nonce, anything else 401;
+     * both carry a fresh nonce.
      */
-    public StunMessage createAuthenticationChallenge(StunMessage originalMessage) {
+    public StunMessage createAuthenticationChallenge(StunMessage originalMessage, String clientAddress,
+                                                     NonceService.Status nonceStatus) {
         logger.debug("Creating authentication challenge");
         
         // Generate nonce
-        String nonce = HmacUtils.generateNonce();
-        storeNonce(nonce);
+        String nonce = nonceService.generateNonce(clientAddress);
+        boolean stale = nonceStatus == NonceService.Status.STALE;
         
         // Create error response
         StunMessage errorResponse = new StunMessage(
@@ -124,8 +178,16 @@ public class AuthService {
         // Add NONCE attribute
         errorResponse.addAttribute(new StunAttribute(AttributeType.NONCE, nonce.getBytes()));
         
-        // Add ERROR-CODE attribute (401 Unauthorized)
-        errorResponse.addAttribute(createErrorCodeAttribute(401, "Unauthorized"));
+        // Advertise the authorization server for third-party authorization (RFC 7635)
+        if (accessTokenService.isEnabled() && !accessTokenService.getAuthorizationServer().isEmpty()) {
+            errorResponse.addAttribute(new StunAttribute(AttributeType.THIRD_PARTY_AUTHORIZATION,
+                accessTokenService.getAuthorizationServer().getBytes(StandardCharsets.UTF_8)));
+        }
+        
+        // Add ERROR-CODE attribute (438 Stale Nonce or 401 Unauthorized)
+        errorResponse.addAttribute(stale
+            ? createErrorCodeAttribute(438, "Stale Nonce")
+            : createErrorCodeAttribute(401, "Unauthorized"));
         
         return errorResponse;
     }
@@ -133,48 +195,25 @@ public class AuthService {
     /**
      * Validate nonce from client request
      */
-    public boolean validateNonce(String nonce) {
-        if (nonce == null || nonce.isEmpty()) {
-            return false;
-        }
-        
-        Long timestamp = nonceCache.get(nonce);
-        if (timestamp == null) {
-            logger.debug("Nonce not found in cache: {}", nonce);
-            return false;
-        }
-        
-        long currentTime = System.currentTimeMillis() / 1000;
-        boolean isValid = (currentTime - timestamp) <= NONCE_VALIDITY_SECONDS;
-        
-        if (!isValid) {
-            logger.debug("Nonce expired: {}", nonce);
-            nonceCache.remove(nonce);
-        }
-        
-        return isValid;
+    public boolean validateNonce(String nonce, String clientAddress) {
+        return nonceService.validateNonce(nonce, clientAddress) == NonceService.Status.VALID;
     }
     
     /**
-     * Generate short-term credentials
+     * Generate short-term credentials in the TURN REST API format:
+     * expiry:username and base64(HMAC-SHA1(secret, username))
      */
     public String[] generateShortTermCredentials(String baseUsername) {
-        String username = HmacUtils.generateShortTermUsername(baseUsername);
-        String password = HmacUtils.generateShortTermPassword();
+        String username = HmacUtils.generateShortTermUsername(baseUsername, shortTermCredentialLifetimeSeconds);
+        String password = HmacUtils.generateShortTermPassword(username, secret);
         return new String[]{username, password};
     }
     
     /**
-     * Validate short-term credentials
+     * Validate short-term credentials against every active secret
      */
     public boolean validateShortTermCredentials(String username, String password) {
-        // Check if username format is correct (timestamp:username)
-        if (!username.contains(":")) {
-            return false;
-        }
-        
-        // Check if credentials are not expired
-        return !HmacUtils.isShortTermCredentialExpired(username, NONCE_VALIDITY_SECONDS);
+        return credentialCache.verifyEphemeralPassword(username, password);
     }
     
     /**
@@ -192,31 +231,36 @@ public class AuthService {
     }
     
     /**
-     * Create MESSAGE-INTEGRITY attribute for response
+     * Sign a response with the key that authenticated the request.
+     * The MESSAGE-INTEGRITY attribute is computed in place when the response is encoded.
      */
-    public StunAttribute createMessageIntegrityAttribute(StunMessage message, String username) {
-        try {
-            Optional<User> userOpt = userService.findUserByUsername(username);
-            if (!userOpt.isPresent()) {
-                throw AuthenticationException.userNotFound();
-            }
-            
-            User user = userOpt.get();
-            byte[] key = HmacUtils.generateLongTermKey(username, realm, extractPasswordFromHash(user.getPassword()));
-            byte[] messageBytes = createMessageBytesForIntegrityCheck(message);
-            byte[] integrity = HmacUtils.createStunMessageIntegrity(messageBytes, key);
-            
-            return new StunAttribute(AttributeType.MESSAGE_INTEGRITY, integrity);
-            
-        } catch (Exception e) {
-            logger.error("Error creating MESSAGE-INTEGRITY attribute", e);
+    public void signMessage(StunMessage message, StunMessage request) {
+        if (request.getIntegrityKey() == null) {
+            logger.error("Cannot sign response to an unauthenticated request");
             throw AuthenticationException.invalidCredentials();
         }
+        message.setIntegrityKey(request.getIntegrityKey());
     }
     
-    private void storeNonce(String nonce) {
-        long timestamp = System.currentTimeMillis() / 1000;
-        nonceCache.put(nonce, timestamp);
+    private boolean authenticateAccessToken(StunMessage message, StunMessageView source, int integrityAttr,
+                                            String keyId, byte[] token) {
+        AccessTokenService.AccessToken accessToken = accessTokenService.validateToken(keyId, token);
+        if (accessToken == null) {
+            logger.warn("Invalid or expired access token for key ID: {}", keyId);
+            return false;
+        }
+        
+        boolean isValid = HmacUtils.verifyStunMessageIntegrity(source.getBuffer(), source.getStart(),
+                                                               source.getValueOffset(integrityAttr) - 4,
+                                                               accessToken.getMacKey());
+        if (!isValid) {
+            logger.warn("MESSAGE-INTEGRITY verification failed for access token with key ID: {}", keyId);
+            return false;
+        }
+        
+        logger.debug("Authentication successful with access token for key ID: {}", keyId);
+        message.setIntegrityKey(accessToken.getMacKey());
+        return true;
     }
     
     private com.example.turnserver.protocol.MessageType getErrorResponseType(com.example.turnserver.protocol.MessageType requestType) {
@@ -249,41 +293,4 @@ public class AuthService {
         
         return new StunAttribute(AttributeType.ERROR_CODE, value);
     }
-    
-    private byte[] createMessageBytesForIntegrityCheck(StunMessage message) {
-        // This is a simplified implementation
-        // In a real implementation, you would serialize the STUN message
-        // up to but not including the MESSAGE-INTEGRITY attribute
-        String messageStr = message.getMessageType().getValue() + "_" + message.calculateLength();
-        return messageStr.getBytes();
-    }
-    
-    private String extractPasswordFromHash(String hashedPassword) {
-        // This is a simplified extraction for demo purposes
-        // In a real implementation, you would need to handle the stored password format properly
-        return hashedPassword.split(":").length > 1 ? hashedPassword.split(":")[1] : hashedPassword;
-    }
-    
-    private void startNonceCleanupTask() {
-        Thread cleanupThread = new Thread(() -> {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    Thread.sleep(NONCE_CLEANUP_INTERVAL);
-                    cleanupExpiredNonces();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-            }
-        });
-        cleanupThread.setDaemon(true);
-        cleanupThread.setName("NonceCleanupThread");
-        cleanupThread.start();
-    }
-    
-    private void cleanupExpiredNonces() {
-        long currentTime = System.currentTimeMillis() / 1000;
-        nonceCache.entrySet().removeIf(entry -> 
-            (currentTime - entry.getValue()) > NONCE_VALIDITY_SECONDS);
-    }
-}
\ No newline at end of file
+}
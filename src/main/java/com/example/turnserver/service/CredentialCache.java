@@ -0,0 +1,355 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.model.User;
+import com.example.turnserver.util.HmacUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory cache of long-term credentials: the enabled flag and the precomputed
+ * MD5(username:realm:password) key of each user, for the configured realm.
+ *
+ * Authentication reads from here, so it only reaches SQLite on a miss, and only for usernames
+ * the {@link UsernameFilter} cannot rule out. Such a miss is loaded through the
+ * {@link UserLoader} without blocking, and the request is processed again once it is cached.
+ * UserService invalidates the entry of every user it changes once the change is committed;
+ * entries also expire after a while to pick up changes made to the database directly.
+ * A load holds a pending marker in the entry of its user until it completes, and only caches
+ * what it read if no invalidation has removed the marker meanwhile.
+ *
+ * With the TURN REST API enabled, usernames of the form expiry:userid are ephemeral
+ * credentials whose password is base64(HMAC-SHA1(secret, username)). Their keys are derived
+ * from the shared secrets without touching the users table, one candidate per active secret,
+ * and only cached once a request has been verified with one of them, until the username expires.
+ * The key that last matched is tried first.
+ */
+@Service
+public class CredentialCache {
+    
+    private static final Logger logger = LoggerFactory.getLogger(CredentialCache.class);
+    
+    private final UserLoader userLoader;
+    private final UsernameFilter usernameFilter;
+    private final String realm;
+    private final int maxSize;
+    private final long expireAfterNanos;
+    
+    // TURN REST API shared secrets, the primary one first
+    private final boolean restApiEnabled;
+    private final List<String> restApiSecrets = new ArrayList<>();
+    
+    private final Map<String, Credential> credentials = new ConcurrentHashMap<>();
+    
+    private final Counter hits;
+    private final Counter misses;
+    
+    @Autowired
+    public CredentialCache(UserLoader userLoader,
+                           UsernameFilter usernameFilter,
+                           MeterRegistry meterRegistry,
+                           @Value("${turn.server.realm:turn.example.com}") String realm,
+                           @Value("${turn.server.credential-cache.max-size:10000}") int maxSize,
+                           @Value("${turn.server.credential-cache.expire-after-seconds:300}") long expireAfterSeconds,
+                           @Value("${turn.server.rest-api.enabled:false}") boolean restApiEnabled,
+                           @Value("${turn.server.secret:myTurnSecret123}") String secret,
+                           @Value("${turn.server.rest-api.secrets:}") String extraSecrets) {
+        this.userLoader = userLoader;
+        this.usernameFilter = usernameFilter;
+        this.realm = realm;
+        this.maxSize = maxSize;
+        this.expireAfterNanos = TimeUnit.SECONDS.toNanos(expireAfterSeconds);
+        
+        this.restApiEnabled = restApiEnabled;
+        restApiSecrets.add(secret);
+        for (String extraSecret : extraSecrets.split(",")) {
+            if (!extraSecret.trim().isEmpty()) {
+                restApiSecrets.add(extraSecret.trim());
+            }
+        }
+        
+        this.hits = Counter.builder("turn.auth.credential.cache")
+                .description("Long-term credential lookups")
+                .tag("result", "hit")
+                .register(meterRegistry);
+        this.misses = Counter.builder("turn.auth.credential.cache")
+                .description("Long-term credential lookups")
+                .tag("result", "miss")
+                .register(meterRegistry);
+        Gauge.builder("turn.auth.credential.cache.size", credentials, Map::size)
+                .description("Cached long-term credentials")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Get the cached credential of a user, deriving the ephemeral keys on a miss.
+     * Users of the database are only found once {@link #load(String)} has completed.
+     *
+     * @return the credential, or null if the user is not cached or the ephemeral username expired
+     */
+    public Credential get(String username) {
+        Credential credential = cached(username);
+        if (credential != null) {
+            hits.increment();
+            return credential;
+        }
+        
+        misses.increment();
+        return isEphemeral(username) ? deriveEphemeral(username) : null;
+    }
+    
+    /**
+     * Load the credential of a database user into the cache without blocking
+     *
+     * @return a future completed with the credential, or with null if there is no such user,
+     *         on the user loader thread; null if the credential is cached or needs no loading
+     */
+    public CompletableFuture<Credential> load(String username) {
+        if (isEphemeral(username) || cached(username) != null) {
+            return null;
+        }
+        
+        // Usernames that definitely do not exist never reach the database
+        if (!usernameFilter.mightExist(username)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        Credential pending = Credential.pending();
+        putBounded(username, pending);
+        return userLoader.load(username)
+                .whenComplete((userOpt, e) -> {
+                    if (e != null) {
+                        credentials.remove(username, pending);
+                    }
+                })
+                .thenApply(userOpt -> cache(username, userOpt, pending));
+    }
+    
+    /**
+     * Record that a request was verified with one of the keys of a credential.
+     * An ephemeral credential is cached from then on, with that key tried first.
+     */
+    public void verified(String username, Credential credential, int keyIndex) {
+        if (!credential.isEphemeral() || credentials.get(username) == credential && keyIndex == 0) {
+            return;
+        }
+        
+        byte[][] keys = new byte[credential.getKeyCount()][];
+        keys[0] = credential.getKey(keyIndex);
+        for (int i = 0, j = 1; i < keys.length; i++) {
+            if (i != keyIndex) {
+                keys[j++] = credential.getKey(i);
+            }
+        }
+        putBounded(username, new Credential(true, keys, credential.expiresAtNanos, true));
+    }
+    
+    /**
+     * Check a TURN REST API password against every active secret
+     */
+    public boolean verifyEphemeralPassword(String username, String password) {
+        if (!isEphemeral(username) || HmacUtils.isShortTermCredentialExpired(username)) {
+            return false;
+        }
+        
+        boolean matched = false;
+        for (String secret : restApiSecrets) {
+            matched |= MessageDigest.isEqual(
+                HmacUtils.generateShortTermPassword(username, secret).getBytes(StandardCharsets.UTF_8),
+                password.getBytes(StandardCharsets.UTF_8));
+        }
+        return matched;
+    }
+    
+    /**
+     * Check whether a username is a TURN REST API ephemeral username, expiry:userid
+     */
+    public boolean isEphemeral(String username) {
+        if (!restApiEnabled) {
+            return false;
+        }
+        
+        int separator = username.indexOf(':');
+        if (separator <= 0) {
+            return false;
+        }
+        for (int i = 0; i < separator; i++) {
+            if (!Character.isDigit(username.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Drop the cached credential of a user now and again once the current transaction,
+     * if any, has committed
+     */
+    public void invalidate(String username) {
+        evict(username);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evict(username);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Drop every cached credential
+     */
+    public void invalidateAll() {
+        credentials.clear();
+    }
+    
+    public String getRealm() {
+        return realm;
+    }
+    
+    private Credential cached(String username) {
+        Credential credential = credentials.get(username);
+        return credential != null && !credential.isPending() && credential.expiresAtNanos - System.nanoTime() > 0
+                ? credential : null;
+    }
+    
+    /**
+     * Replace the pending marker of a completed load with what it read, unless an
+     * invalidation removed the marker while the user was being read
+     */
+    private Credential cache(String username, Optional<User> userOpt, Credential pending) {
+        if (!userOpt.isPresent()) {
+            usernameFilter.recordFalsePositive();
+            credentials.remove(username, pending);
+            return null;
+        }
+        
+        User user = userOpt.get();
+        Credential credential = new Credential(
+            Boolean.TRUE.equals(user.getEnabled()),
+            new byte[][] {HmacUtils.generateLongTermKey(username, realm, extractPasswordFromHash(user.getPassword()))},
+            System.nanoTime() + expireAfterNanos,
+            false
+        );
+        credentials.replace(username, pending, credential);
+        return credential;
+    }
+    
+    private Credential deriveEphemeral(String username) {
+        long remainingSeconds = HmacUtils.parseTimestampFromUsername(username) - System.currentTimeMillis() / 1000;
+        if (remainingSeconds <= 0) {
+            logger.debug("Ephemeral username expired: {}", username);
+            return null;
+        }
+        
+        byte[][] keys = new byte[restApiSecrets.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            String password = HmacUtils.generateShortTermPassword(username, restApiSecrets.get(i));
+            keys[i] = HmacUtils.generateLongTermKey(username, realm, password);
+        }
+        return new Credential(true, keys, System.nanoTime() + TimeUnit.SECONDS.toNanos(remainingSeconds), true);
+    }
+    
+    private void putBounded(String username, Credential credential) {
+        if (credentials.size() >= maxSize) {
+            evictOne();
+        }
+        credentials.put(username, credential);
+    }
+    
+    private void evict(String username) {
+        if (credentials.remove(username) != null) {
+            logger.debug("Invalidated cached credential for user: {}", username);
+        }
+    }
+    
+    // The cache only bounds memory, so dropping an arbitrary entry is good enough
+    private void evictOne() {
+        Iterator<String> iterator = credentials.keySet().iterator();
+        if (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+    
+    private static String extractPasswordFromHash(String hashedPassword) {
+        // This is a simplified extraction for demo purposes
+        // In a real implementation, you would need to handle the stored password format properly
+        return hashedPassword.split(":").length > 1 ? hashedPassword.split(":")[1] : hashedPassword;
+    }
+    
+    /**
+     * Cached credential of a user
+     */
+    public static final class Credential {
+        
+        private final boolean enabled;
+        private final byte[][] keys;
+        private final long expiresAtNanos;
+        private final boolean ephemeral;
+        
+        Credential(boolean enabled, byte[][] keys, long expiresAtNanos, boolean ephemeral) {
+            this.enabled = enabled;
+            this.keys = keys;
+            this.expiresAtNanos = expiresAtNanos;
+            this.ephemeral = ephemeral;
+        }
+        
+        /**
+         * Marker held in the cache while a user is being loaded, a distinct one per load
+         */
+        static Credential pending() {
+            return new Credential(false, null, 0L, false);
+        }
+        
+        boolean isPending() {
+            return keys == null;
+        }
+        
+        public boolean isEnabled() {
+            return enabled;
+        }
+        
+        /**
+         * Check whether this is a TURN REST API credential rather than a user of the database
+         */
+        public boolean isEphemeral() {
+            return ephemeral;
+        }
+        
+        /**
+         * Get the number of candidate keys: one per active secret for an ephemeral
+         * credential, otherwise one
+         */
+        public int getKeyCount() {
+            return keys.length;
+        }
+        
+        /**
+         * Get a 16-byte long-term key. The array is shared and must not be modified.
+         */
+        public byte[] getKey(int index) {
+            return keys[index];
+        }
+
+    }
+}
\ No newline at end of file
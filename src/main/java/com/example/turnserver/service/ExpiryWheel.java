@@ -0,0 +1,95 @@
+package com.example.turnserver.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared hashed timing wheel for the expiry of allocations, permissions, channel bindings,
+ * port reservations and sessions.
+ *
+ * Adding a timeout puts it in the bucket of its deadline in O(1), and each tick only visits
+ * the timeouts of one bucket, so the cost of expiry grows with the number of deadlines that
+ * lapse rather than with the total state, unlike the event loop schedulers' priority queues
+ * or a periodic sweep. Deadlines are rounded up to the next tick.
+ *
+ * Expiry handlers follow the same pattern everywhere: a refresh only moves the deadline of the
+ * entry, and a timeout firing before the current deadline re-arms itself for the remaining
+ * time, so a refresh never touches the wheel. Handlers of state confined to an event loop are
+ * handed over to that event loop.
+ */
+@Service
+public class ExpiryWheel {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ExpiryWheel.class);
+    
+    private final HashedWheelTimer timer;
+    private final Timer tickLag;
+    
+    @Autowired
+    public ExpiryWheel(MeterRegistry meterRegistry,
+                       @Value("${turn.server.expiry-wheel.tick-millis:100}") long tickMillis,
+                       @Value("${turn.server.expiry-wheel.ticks-per-wheel:512}") int ticksPerWheel) {
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("TurnExpiry", true),
+                                          tickMillis, TimeUnit.MILLISECONDS, ticksPerWheel, false);
+        
+        Gauge.builder("turn.timer.pending", timer, HashedWheelTimer::pendingTimeouts)
+                .description("Timeouts waiting on the expiry wheel")
+                .register(meterRegistry);
+        this.tickLag = Timer.builder("turn.timer.lag")
+                .description("Delay between the deadline of a timeout and the tick that fired it")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Run a task on the wheel thread once a delay has passed. The task must be quick and
+     * thread-safe.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return schedule(null, task, delay, unit);
+    }
+    
+    /**
+     * Run a task on an executor, typically the event loop owning the state it expires, once a
+     * delay has passed
+     */
+    public Timeout schedule(Executor executor, Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(delay);
+        return timer.newTimeout(timeout -> {
+            tickLag.record(Math.max(0, System.nanoTime() - deadline), TimeUnit.NANOSECONDS);
+            if (executor == null) {
+                task.run();
+                return;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // The event loop is shutting down, and the state with it
+                logger.debug("Dropped expiry task for a terminated executor");
+            }
+        }, delay, unit);
+    }
+    
+    public long getPendingTimeouts() {
+        return timer.pendingTimeouts();
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        timer.stop();
+    }
+}
\ No newline at end of file
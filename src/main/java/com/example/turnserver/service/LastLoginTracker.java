@@ -0,0 +1,110 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.service.PersistenceWriter.Mutation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind tracking of users' last login time.
+ *
+ * Successful authentications only record the time in memory. A scheduled flush queues one
+ * UPDATE per user seen since the last flush on the {@link PersistenceWriter}, which writes them
+ * as a JDBC batch in as few transactions as its batch size allows. A user whose stored last_login is less than the maximum
+ * staleness behind is not rewritten, so a client refreshing every few seconds costs one row
+ * update per staleness period rather than one per request.
+ *
+ * last_login therefore lags the real last login by at most the flush interval plus the maximum
+ * staleness, plus the time the writer takes to reach the batch.
+ */
+@Service
+public class LastLoginTracker {
+    
+    private static final Logger logger = LoggerFactory.getLogger(LastLoginTracker.class);
+    
+    private static final String UPDATE_LAST_LOGIN = "UPDATE users SET last_login = ? WHERE username = ?";
+    
+    private final PersistenceWriter persistenceWriter;
+    private final long maxStalenessMillis;
+    
+    private final Map<String, LastLogin> lastLogins = new ConcurrentHashMap<>();
+    
+    @Autowired
+    public LastLoginTracker(PersistenceWriter persistenceWriter,
+                            @Value("${turn.server.last-login.max-staleness-seconds:30}") long maxStalenessSeconds) {
+        this.persistenceWriter = persistenceWriter;
+        this.maxStalenessMillis = TimeUnit.SECONDS.toMillis(maxStalenessSeconds);
+    }
+    
+    /**
+     * Record a login now, to be written by the next flush
+     */
+    public void record(String username) {
+        LastLogin lastLogin = lastLogins.get(username);
+        if (lastLogin == null) {
+            lastLogin = lastLogins.computeIfAbsent(username, key -> new LastLogin());
+        }
+        lastLogin.seen = System.currentTimeMillis();
+    }
+    
+    /**
+     * Queue pending last login times for writing
+     */
+    @Scheduled(fixedDelayString = "${turn.server.last-login.flush-interval-seconds:30}",
+               initialDelayString = "${turn.server.last-login.flush-interval-seconds:30}",
+               timeUnit = TimeUnit.SECONDS)
+    public synchronized void flush() {
+        long now = System.currentTimeMillis();
+        int flushed = 0;
+        
+        for (Map.Entry<String, LastLogin> entry : lastLogins.entrySet()) {
+            LastLogin lastLogin = entry.getValue();
+            long seen = lastLogin.seen;
+            if (seen - lastLogin.written >= maxStalenessMillis && seen != lastLogin.written) {
+                LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(seen), ZoneId.systemDefault());
+                persistenceWriter.submitBlocking(Mutation.of(UPDATE_LAST_LOGIN, time, entry.getKey()))
+                        .thenRun(() -> lastLogin.written = seen);
+                flushed++;
+            } else if (now - seen > maxStalenessMillis) {
+                // Idle: the next login would be written anyway, so forget the user
+                lastLogins.remove(entry.getKey(), lastLogin);
+                if (lastLogin.seen != seen) {
+                    lastLogins.putIfAbsent(entry.getKey(), lastLogin);
+                }
+            }
+        }
+        if (flushed > 0) {
+            logger.debug("Queued last login of {} user(s)", flushed);
+        }
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to flush last login times on shutdown", e);
+        }
+    }
+    
+    /**
+     * Last login of a user, in epoch milliseconds
+     */
+    private static final class LastLogin {
+        
+        volatile long seen;
+        // Last value written to the database, set by the persistence writer once committed
+        volatile long written;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,212 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.util.HmacUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stateless NONCE values for the long-term credential mechanism.
+ *
+ * A nonce is the hex encoding of its issue time followed by a truncated HMAC-SHA1 over that
+ * time and the client IP address, so it can be validated without remembering it. The MAC key
+ * is derived from the server secret for each rotation period: nodes sharing the secret accept
+ * each other's nonces, and a key stays accepted for one period after the next one takes over,
+ * so nonces issued just before a rotation remain usable for their whole lifetime.
+ */
+@Service
+public class NonceService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(NonceService.class);
+    
+    private static final int TIMESTAMP_LENGTH = 4;
+    private static final int MAC_LENGTH = 12;
+    private static final int NONCE_LENGTH = 2 * (TIMESTAMP_LENGTH + MAC_LENGTH);
+    
+    // Tolerated clock skew between nodes for nonces issued in the future
+    private static final long MAX_CLOCK_SKEW_SECONDS = 30;
+    
+    /**
+     * Outcome of a nonce validation
+     */
+    public enum Status {
+        VALID,
+        // Authentic but expired: the client should retry with a fresh nonce (438)
+        STALE,
+        INVALID
+    }
+    
+    private final byte[] secret;
+    private final long lifetimeSeconds;
+    private final long rotationSeconds;
+    
+    private volatile EpochKeys keys;
+    
+    @Autowired
+    public NonceService(@Value("${turn.server.secret:myTurnSecret123}") String secret,
+                        @Value("${turn.server.nonce.lifetime-seconds:300}") long lifetimeSeconds,
+                        @Value("${turn.server.nonce.key-rotation-seconds:3600}") long rotationSeconds) {
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.lifetimeSeconds = lifetimeSeconds;
+        
+        // A key must outlive the nonces it signed
+        if (rotationSeconds < lifetimeSeconds) {
+            logger.warn("Nonce key rotation period {}s is shorter than the nonce lifetime, using {}s",
+                        rotationSeconds, lifetimeSeconds);
+            rotationSeconds = lifetimeSeconds;
+        }
+        this.rotationSeconds = rotationSeconds;
+        this.keys = deriveKeys(currentTimeSeconds() / rotationSeconds);
+    }
+    
+    /**
+     * Issue a nonce bound to a client IP address
+     */
+    public String generateNonce(String clientAddress) {
+        long timestamp = currentTimeSeconds();
+        byte[] mac = calculateMac(currentKeys(timestamp).current, timestamp, clientAddress);
+        
+        char[] nonce = new char[NONCE_LENGTH];
+        for (int i = 0; i < TIMESTAMP_LENGTH; i++) {
+            writeHex(nonce, i, (int) (timestamp >>> (24 - 8 * i)));
+        }
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            writeHex(nonce, TIMESTAMP_LENGTH + i, mac[i]);
+        }
+        return new String(nonce);
+    }
+    
+    /**
+     * Validate a nonce presented by a client IP address
+     */
+    public Status validateNonce(String nonce, String clientAddress) {
+        if (nonce == null || nonce.length() != NONCE_LENGTH) {
+            return Status.INVALID;
+        }
+        
+        byte[] decoded = new byte[TIMESTAMP_LENGTH + MAC_LENGTH];
+        for (int i = 0; i < decoded.length; i++) {
+            int high = Character.digit(nonce.charAt(2 * i), 16);
+            int low = Character.digit(nonce.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return Status.INVALID;
+            }
+            decoded[i] = (byte) ((high << 4) | low);
+        }
+        
+        long timestamp = 0;
+        for (int i = 0; i < TIMESTAMP_LENGTH; i++) {
+            timestamp = (timestamp << 8) | (decoded[i] & 0xFF);
+        }
+        
+        long now = currentTimeSeconds();
+        if (timestamp > now + MAX_CLOCK_SKEW_SECONDS) {
+            return Status.INVALID;
+        }
+        
+        // Keys older than the overlap window are gone, and without a key a nonce cannot be told
+        // apart from a forged one
+        byte[] key = keyFor(currentKeys(now), timestamp / rotationSeconds);
+        if (key == null) {
+            return Status.INVALID;
+        }
+        
+        byte[] mac = calculateMac(key, timestamp, clientAddress);
+        int result = 0;
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            result |= mac[i] ^ decoded[TIMESTAMP_LENGTH + i];
+        }
+        if (result != 0) {
+            return Status.INVALID;
+        }
+        
+        return now - timestamp > lifetimeSeconds ? Status.STALE : Status.VALID;
+    }
+    
+    /**
+     * Get the keys of the rotation period of the server clock, rotating them when it starts.
+     * Keys only ever move forward, and only with the server clock.
+     */
+    private EpochKeys currentKeys(long now) {
+        long epoch = now / rotationSeconds;
+        EpochKeys current = keys;
+        if (epoch <= current.epoch) {
+            return current;
+        }
+        
+        synchronized (this) {
+            current = keys;
+            if (epoch > current.epoch) {
+                // Rotation: the period just ended becomes the overlap window
+                current = epoch == current.epoch + 1
+                    ? new EpochKeys(epoch, deriveKey(epoch), current.current)
+                    : deriveKeys(epoch);
+                keys = current;
+                logger.debug("Rotated nonce key to period {}", epoch);
+            }
+            return current;
+        }
+    }
+    
+    /**
+     * Get the key of a rotation period, or null if it is not accepted. The key of the next
+     * period is derived without being kept, for nonces of nodes whose clock is slightly ahead.
+     */
+    private byte[] keyFor(EpochKeys current, long epoch) {
+        if (epoch == current.epoch) {
+            return current.current;
+        }
+        if (epoch == current.epoch - 1) {
+            return current.previous;
+        }
+        return epoch == current.epoch + 1 ? deriveKey(epoch) : null;
+    }
+    
+    private EpochKeys deriveKeys(long epoch) {
+        return new EpochKeys(epoch, deriveKey(epoch), deriveKey(epoch - 1));
+    }
+    
+    private byte[] deriveKey(long epoch) {
+        return HmacUtils.calculateHmacSha256(("turn-nonce-key:" + epoch).getBytes(StandardCharsets.UTF_8), secret);
+    }
+    
+    private static byte[] calculateMac(byte[] key, long timestamp, String clientAddress) {
+        Mac mac = HmacUtils.hmacSha1(key);
+        mac.update((byte) (timestamp >>> 24));
+        mac.update((byte) (timestamp >>> 16));
+        mac.update((byte) (timestamp >>> 8));
+        mac.update((byte) timestamp);
+        mac.update(clientAddress.getBytes(StandardCharsets.UTF_8));
+        return mac.doFinal();
+    }
+    
+    private static void writeHex(char[] out, int byteIndex, int value) {
+        out[2 * byteIndex] = Character.forDigit((value >>> 4) & 0xF, 16);
+        out[2 * byteIndex + 1] = Character.forDigit(value & 0xF, 16);
+    }
+    
+    private static long currentTimeSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+    
+    /**
+     * Key of the current rotation period and of the one before it
+     */
+    private static final class EpochKeys {
+        
+        final long epoch;
+        final byte[] current;
+        final byte[] previous;
+        
+        EpochKeys(long epoch, byte[] current, byte[] previous) {
+            this.epoch = epoch;
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,274 @@
+package com.example.turnserver.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single writer feeding SQLite, which allows only one writer at a time.
+ *
+ * Producers put mutations on a bounded queue and get a future back. One writer thread drains
+ * the queue and group-commits whatever has accumulated, up to the maximum batch size, in one
+ * transaction: consecutive mutations with the same SQL go out as one JDBC batch of a prepared
+ * statement, and the order of mutations is kept. A burst of Allocates therefore costs one
+ * commit, and one fsync, per batch rather than per request.
+ *
+ * When the queue is full mutations are rejected, so a stalled disk costs writes instead of
+ * growing the heap or stalling the event loops; only producers that may block wait up to the
+ * offer timeout first. A drop is logged when the queue starts overflowing, then summarized
+ * periodically by the writer thread, so that the event loops do not log every one. If a batch fails its mutations are retried one per transaction, so that
+ * only the failing one is lost.
+ */
+@Service
+public class PersistenceWriter {
+    
+    private static final Logger logger = LoggerFactory.getLogger(PersistenceWriter.class);
+    
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private static final long DROP_REPORT_INTERVAL_SECONDS = 10;
+    
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int maxBatchSize;
+    private final long offerTimeoutMillis;
+    
+    private final BlockingQueue<Mutation> queue;
+    private final Thread writer;
+    private volatile boolean stopping;
+    
+    private final DistributionSummary batchSize;
+    private final Timer commitLatency;
+    private final Counter rejected;
+    private final Counter failed;
+    
+    // Mutations dropped since the queue last had a quiet interval; the first is logged as it
+    // happens, the rest in summaries by the writer thread
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDrops;
+    
+    @Autowired
+    public PersistenceWriter(JdbcTemplate jdbcTemplate,
+                             PlatformTransactionManager transactionManager,
+                             MeterRegistry meterRegistry,
+                             @Value("${turn.server.persistence.queue-capacity:10000}") int queueCapacity,
+                             @Value("${turn.server.persistence.max-batch-size:500}") int maxBatchSize,
+                             @Value("${turn.server.persistence.offer-timeout-millis:50}") long offerTimeoutMillis) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        
+        Gauge.builder("turn.persistence.queue.depth", queue, BlockingQueue::size)
+                .description("Mutations waiting for the persistence writer")
+                .register(meterRegistry);
+        this.batchSize = DistributionSummary.builder("turn.persistence.batch.size")
+                .description("Mutations committed per transaction")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.commitLatency = Timer.builder("turn.persistence.commit.latency")
+                .description("Time to write and commit one batch")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.rejected = Counter.builder("turn.persistence.rejected")
+                .description("Mutations rejected because the queue was full")
+                .register(meterRegistry);
+        this.failed = Counter.builder("turn.persistence.failed")
+                .description("Mutations that could not be written")
+                .register(meterRegistry);
+        
+        this.writer = new Thread(this::run, "TurnPersistence");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    /**
+     * Queue a mutation without blocking, for the event loops and the expiry wheel
+     *
+     * @return a future completed once the mutation is committed, or completed exceptionally if
+     *         it was rejected because the queue is full, or failed
+     */
+    public CompletableFuture<Void> submit(Mutation mutation) {
+        if (!stopping && queue.offer(mutation)) {
+            return mutation.future;
+        }
+        return reject(mutation);
+    }
+    
+    /**
+     * Queue a mutation, waiting up to the offer timeout for room in the queue. Only for
+     * threads that may block, such as schedulers and startup.
+     *
+     * @return a future completed once the mutation is committed, or completed exceptionally if
+     *         it was rejected because the queue stayed full, or failed
+     */
+    public CompletableFuture<Void> submitBlocking(Mutation mutation) {
+        try {
+            if (!stopping && queue.offer(mutation, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return mutation.future;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return reject(mutation);
+    }
+    
+    /**
+     * Finish queued mutations before the data source goes away
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        stopping = true;
+        writer.join(TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SECONDS));
+        if (writer.isAlive()) {
+            logger.warn("Persistence writer did not finish within {}s, {} mutation(s) left",
+                        SHUTDOWN_TIMEOUT_SECONDS, queue.size());
+        }
+    }
+    
+    private CompletableFuture<Void> reject(Mutation mutation) {
+        rejected.increment();
+        if (dropped.getAndIncrement() == 0) {
+            logger.warn("Persistence queue full, dropping mutations, first: {}", mutation.sql);
+        } else {
+            logger.debug("Persistence queue full, dropped: {}", mutation.sql);
+        }
+        mutation.future.completeExceptionally(new RejectedExecutionException("Persistence queue full"));
+        return mutation.future;
+    }
+    
+    private void run() {
+        List<Mutation> batch = new ArrayList<>(maxBatchSize);
+        long nextDropReport = System.nanoTime();
+        while (!stopping || !queue.isEmpty()) {
+            try {
+                if (System.nanoTime() - nextDropReport >= 0) {
+                    reportDrops();
+                    nextDropReport = System.nanoTime() + TimeUnit.SECONDS.toNanos(DROP_REPORT_INTERVAL_SECONDS);
+                }
+                
+                Mutation first = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Persistence writer error", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+    
+    private void reportDrops() {
+        long total = dropped.get();
+        if (total > reportedDrops) {
+            logger.warn("Persistence queue full, dropped {} mutation(s) since the last report",
+                        total - reportedDrops);
+            reportedDrops = total;
+        } else if (total > 0 && dropped.compareAndSet(total, 0)) {
+            // No drops for a whole interval: the next one is logged right away again
+            reportedDrops = 0;
+        }
+    }
+    
+    private void write(List<Mutation> batch) {
+        long start = System.nanoTime();
+        try {
+            transactionTemplate.executeWithoutResult(status -> execute(batch));
+            commitLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            batchSize.record(batch.size());
+            for (Mutation mutation : batch) {
+                mutation.future.complete(null);
+            }
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                Mutation mutation = batch.get(0);
+                failed.increment();
+                logger.error("Failed to persist: {}", mutation.sql, e);
+                mutation.future.completeExceptionally(e);
+                return;
+            }
+            
+            logger.warn("Batch of {} mutation(s) failed, retrying one at a time", batch.size(), e);
+            for (Mutation mutation : batch) {
+                write(List.of(mutation));
+            }
+        }
+    }
+    
+    // Runs of the same statement go out as one JDBC batch
+    private void execute(List<Mutation> batch) {
+        int from = 0;
+        while (from < batch.size()) {
+            String sql = batch.get(from).sql;
+            int to = from + 1;
+            while (to < batch.size() && batch.get(to).sql.equals(sql)) {
+                to++;
+            }
+            
+            List<Object[]> args = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                args.add(batch.get(i).args);
+            }
+            jdbcTemplate.batchUpdate(sql, args);
+            from = to;
+        }
+    }
+    
+    /**
+     * One SQL statement with its arguments
+     */
+    public static final class Mutation {
+        
+        private final String sql;
+        private final Object[] args;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        
+        private Mutation(String sql, Object[] args) {
+            this.sql = sql;
+            this.args = args;
+        }
+        
+        /**
+         * Create a mutation. LocalDateTime arguments are bound as timestamps, the way Hibernate
+         * stores them.
+         */
+        public static Mutation of(String sql, Object... args) {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] instanceof LocalDateTime) {
+                    args[i] = Timestamp.valueOf((LocalDateTime) args[i]);
+                }
+            }
+            return new Mutation(sql, args);
+        }
+    }
+}
\ No newline at end of file
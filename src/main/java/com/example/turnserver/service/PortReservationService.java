@@ -0,0 +1,91 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.util.CryptoUtils;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relayed transport addresses held for a later Allocate carrying a RESERVATION-TOKEN
+ * (RFC 5766 section 6.2).
+ *
+ * An Allocate with the R bit of EVEN-PORT set reserves port + 1 of its relayed address in the
+ * {@link RelayPortAllocator} and hands the port over to this service under a random 8-byte
+ * token. A second Allocate presenting the token claims the port with one map removal. An
+ * unclaimed reservation is released back to the allocator by a timeout on the
+ * {@link ExpiryWheel}; whichever of the claim and the timeout removes the token first owns the
+ * port.
+ */
+@Service
+public class PortReservationService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(PortReservationService.class);
+    
+    private final RelayPortAllocator portAllocator;
+    private final ExpiryWheel expiryWheel;
+    private final long lifetimeNanos;
+    
+    private final Map<Long, InetSocketAddress> reservations = new ConcurrentHashMap<>();
+    
+    @Autowired
+    public PortReservationService(RelayPortAllocator portAllocator,
+                                  ExpiryWheel expiryWheel,
+                                  MeterRegistry meterRegistry,
+                                  @Value("${turn.server.reservation-lifetime-seconds:30}") long lifetimeSeconds) {
+        this.portAllocator = portAllocator;
+        this.expiryWheel = expiryWheel;
+        this.lifetimeNanos = TimeUnit.SECONDS.toNanos(lifetimeSeconds);
+        
+        Gauge.builder("turn.relay.reservations", reservations, Map::size)
+                .description("Relayed transport addresses reserved for a RESERVATION-TOKEN")
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Hold a relayed transport address already reserved in the port allocator
+     *
+     * @return the reservation token
+     */
+    public long reserve(InetSocketAddress relayAddress) {
+        long token;
+        do {
+            token = ByteBuffer.wrap(CryptoUtils.generateRandomBytes(8)).getLong();
+        } while (reservations.putIfAbsent(token, relayAddress) != null);
+        
+        long reserved = token;
+        expiryWheel.schedule(() -> expire(reserved), lifetimeNanos, TimeUnit.NANOSECONDS);
+        logger.debug("Reserved {} for {}s", relayAddress, TimeUnit.NANOSECONDS.toSeconds(lifetimeNanos));
+        return token;
+    }
+    
+    /**
+     * Claim a reservation. The caller owns the returned address in the port allocator.
+     *
+     * @return the reserved relayed transport address, or null if the token is unknown or expired
+     */
+    public InetSocketAddress claim(long token) {
+        return reservations.remove(token);
+    }
+    
+    public int getReservationCount() {
+        return reservations.size();
+    }
+    
+    private void expire(long token) {
+        InetSocketAddress relayAddress = reservations.remove(token);
+        if (relayAddress != null) {
+            portAllocator.release(relayAddress);
+            logger.debug("Reservation of {} expired unclaimed", relayAddress);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,413 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.dto.RelayAddressCapacity;
+import com.example.turnserver.util.NetworkUtils;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Allocator of relayed transport addresses over one or more relay IPv4 addresses, each with
+ * its own port range.
+ *
+ * Relay addresses are configured as advertised[/local][:minPort-maxPort]: the advertised
+ * address goes into XOR-RELAYED-ADDRESS, relay sockets bind to the local address (the
+ * advertised one if omitted, e.g. when there is no 1:1 NAT), and the range defaults to
+ * min-port..max-port. Without any relay address the node relays on external-ip over
+ * min-port..max-port, bound to the wildcard address.
+ *
+ * Each address tracks its ports in a bitmap of 64-bit words, one bit per port, and reserves
+ * them with a compare-and-set on their word, so concurrent Allocates never receive the same
+ * port. An Allocate goes to the address with the largest share of free ports, and the search
+ * starts at a random position, which keeps relay ports hard to predict (RFC 5766 section 6.2)
+ * and spreads contending threads over different words. Until an address is nearly full a
+ * search touches one or two words.
+ *
+ * EVEN-PORT requests (RFC 5766 section 14.6) only take even bits, and with the R bit they take
+ * an even port and the next one together: a word is scanned for an even bit whose neighbour
+ * is also free with one shift and mask, and both bits are claimed in the same compare-and-set.
+ *
+ * A released port is quarantined before it can be handed out again, so that datagrams still
+ * addressed to the previous allocation do not reach a new one. If nothing else is free, the
+ * port quarantined longest is reused early rather than failing the Allocate.
+ */
+@Service
+public class RelayPortAllocator {
+    
+    private static final Logger logger = LoggerFactory.getLogger(RelayPortAllocator.class);
+    
+    private final List<AddressPool> pools = new ArrayList<>();
+    private final Map<InetAddress, AddressPool> poolsByAddress = new HashMap<>();
+    
+    @Autowired
+    public RelayPortAllocator(MeterRegistry meterRegistry,
+                              @Value("${turn.server.external-ip:127.0.0.1}") String externalIp,
+                              @Value("${turn.server.min-port:49152}") int minPort,
+                              @Value("${turn.server.max-port:65535}") int maxPort,
+                              @Value("${turn.server.relay-addresses:}") String[] relayAddresses,
+                              @Value("${turn.server.port-allocator.quarantine-seconds:60}") long quarantineSeconds) {
+        long quarantineNanos = TimeUnit.SECONDS.toNanos(quarantineSeconds);
+        for (String relayAddress : relayAddresses) {
+            if (!relayAddress.isBlank()) {
+                addPool(parse(relayAddress.trim(), minPort, maxPort, quarantineNanos));
+            }
+        }
+        if (pools.isEmpty()) {
+            addPool(new AddressPool(address(externalIp), null, minPort, maxPort, quarantineNanos));
+        }
+        
+        for (AddressPool pool : pools) {
+            String address = pool.address.getHostAddress();
+            Gauge.builder("turn.relay.ports.available", pool.available, AtomicInteger::get)
+                    .description("Relay ports free for new allocations")
+                    .tag("address", address)
+                    .register(meterRegistry);
+            Gauge.builder("turn.relay.ports.quarantined", pool, AddressPool::getQuarantined)
+                    .description("Released relay ports waiting out their quarantine")
+                    .tag("address", address)
+                    .register(meterRegistry);
+            logger.info("Relay address {} bound on {}, ports {}-{}", address,
+                        pool.bindAddress != null ? pool.bindAddress.getHostAddress() : "*", pool.minPort, pool.maxPort);
+        }
+    }
+    
+    /**
+     * Reserve a free relayed transport address on the least loaded relay address
+     *
+     * @return the advertised address and port, or null if every port is taken
+     */
+    public InetSocketAddress reserve() {
+        return reserve(false, false);
+    }
+    
+    /**
+     * Reserve a free relayed transport address with an even port, and optionally the next
+     * port on the same address as well, on the least loaded relay address
+     *
+     * @param reserveNext also reserve port + 1, to be claimed with a reservation token
+     * @return the advertised address and even port, or null if no suitable port is free
+     */
+    public InetSocketAddress reserveEven(boolean reserveNext) {
+        return reserve(true, reserveNext);
+    }
+    
+    private InetSocketAddress reserve(boolean even, boolean pair) {
+        AddressPool pool = leastLoaded();
+        int port = pool.reserve(even, pair);
+        if (port == -1) {
+            // The least loaded address may have been drained meanwhile, so try all of them
+            for (AddressPool other : pools) {
+                if (other != pool && (port = other.reserve(even, pair)) != -1) {
+                    pool = other;
+                    break;
+                }
+            }
+        }
+        if (port == -1) {
+            logger.warn("No available {}relay ports on any of {} relay address(es)",
+                        pair ? "even port pair of " : even ? "even " : "", pools.size());
+            return null;
+        }
+        return new InetSocketAddress(pool.address, port);
+    }
+    
+    /**
+     * Release a reserved relayed transport address. The port becomes available again once its
+     * quarantine is over.
+     */
+    public void release(InetSocketAddress relayAddress) {
+        AddressPool pool = poolsByAddress.get(relayAddress.getAddress());
+        if (pool != null) {
+            pool.release(relayAddress.getPort());
+        }
+    }
+    
+    /**
+     * Local address a relay socket for a relayed transport address binds to
+     */
+    public InetSocketAddress getBindAddress(InetSocketAddress relayAddress) {
+        AddressPool pool = poolsByAddress.get(relayAddress.getAddress());
+        if (pool == null || pool.bindAddress == null) {
+            return new InetSocketAddress(relayAddress.getPort());
+        }
+        return new InetSocketAddress(pool.bindAddress, relayAddress.getPort());
+    }
+    
+    public int getAvailablePorts() {
+        int available = 0;
+        for (AddressPool pool : pools) {
+            available += pool.available.get();
+        }
+        return available;
+    }
+    
+    public int getRangeSize() {
+        int range = 0;
+        for (AddressPool pool : pools) {
+            range += pool.size;
+        }
+        return range;
+    }
+    
+    /**
+     * Get the port capacity of every relay address
+     */
+    public List<RelayAddressCapacity> getCapacity() {
+        List<RelayAddressCapacity> capacity = new ArrayList<>(pools.size());
+        for (AddressPool pool : pools) {
+            int available = pool.available.get();
+            int quarantined = pool.getQuarantined();
+            
+            RelayAddressCapacity entry = new RelayAddressCapacity();
+            entry.setAddress(pool.address.getHostAddress());
+            entry.setBindAddress(pool.bindAddress != null ? pool.bindAddress.getHostAddress() : "0.0.0.0");
+            entry.setMinPort(pool.minPort);
+            entry.setMaxPort(pool.maxPort);
+            entry.setPortRange(pool.size);
+            entry.setAvailablePorts(available);
+            entry.setQuarantinedPorts(quarantined);
+            entry.setAllocatedPorts(Math.max(0, pool.size - available - quarantined));
+            capacity.add(entry);
+        }
+        return capacity;
+    }
+    
+    private AddressPool leastLoaded() {
+        AddressPool best = pools.get(0);
+        if (pools.size() == 1) {
+            return best;
+        }
+        
+        // Compare free shares as available / size, cross-multiplied to stay in integers
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int ties = 1;
+        for (int i = 1; i < pools.size(); i++) {
+            AddressPool pool = pools.get(i);
+            long diff = (long) pool.available.get() * best.size - (long) best.available.get() * pool.size;
+            if (diff > 0) {
+                best = pool;
+                ties = 1;
+            } else if (diff == 0 && random.nextInt(++ties) == 0) {
+                best = pool;
+            }
+        }
+        return best;
+    }
+    
+    private void addPool(AddressPool pool) {
+        if (poolsByAddress.putIfAbsent(pool.address, pool) != null) {
+            throw new IllegalArgumentException("Duplicate relay address " + pool.address.getHostAddress());
+        }
+        pools.add(pool);
+    }
+    
+    /**
+     * Parse advertised[/local][:minPort-maxPort]
+     */
+    private static AddressPool parse(String relayAddress, int defaultMinPort, int defaultMaxPort, long quarantineNanos) {
+        String addresses = relayAddress;
+        int minPort = defaultMinPort;
+        int maxPort = defaultMaxPort;
+        
+        int colon = relayAddress.indexOf(':');
+        if (colon >= 0) {
+            addresses = relayAddress.substring(0, colon);
+            String[] range = relayAddress.substring(colon + 1).split("-", 2);
+            try {
+                minPort = Integer.parseInt(range[0].trim());
+                maxPort = range.length > 1 ? Integer.parseInt(range[1].trim()) : minPort;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port range in relay address " + relayAddress, e);
+            }
+        }
+        
+        int slash = addresses.indexOf('/');
+        InetAddress advertised = address(slash >= 0 ? addresses.substring(0, slash) : addresses);
+        InetAddress local = slash >= 0 ? address(addresses.substring(slash + 1)) : advertised;
+        return new AddressPool(advertised, local, minPort, maxPort, quarantineNanos);
+    }
+    
+    private static InetAddress address(String address) {
+        String trimmed = address.trim();
+        if (!NetworkUtils.isValidIPv4(trimmed)) {
+            throw new IllegalArgumentException("Relay addresses must be IPv4 literals: " + address);
+        }
+        try {
+            return InetAddress.getByName(trimmed);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid relay address " + address, e);
+        }
+    }
+    
+    /**
+     * Port bitmap and quarantine of one relay address
+     */
+    private static final class AddressPool {
+        
+        final InetAddress address;
+        // Null binds the wildcard address
+        final InetAddress bindAddress;
+        final int minPort;
+        final int maxPort;
+        final int size;
+        final long quarantineNanos;
+        // Bits of even ports in every word, which depends on the parity of minPort
+        final long evenBits;
+        
+        // Bit set = port reserved or quarantined. Bits past maxPort in the last word stay set.
+        final AtomicLongArray words;
+        final AtomicInteger available;
+        
+        // Released ports in release order, so the head is always the first to leave quarantine
+        final Queue<QuarantinedPort> quarantine = new ArrayDeque<>();
+        
+        AddressPool(InetAddress address, InetAddress bindAddress, int minPort, int maxPort, long quarantineNanos) {
+            if (minPort < 1 || maxPort > 65535 || minPort > maxPort) {
+                throw new IllegalArgumentException("Invalid relay port range " + minPort + "-" + maxPort
+                                                   + " for " + address.getHostAddress());
+            }
+            this.address = address;
+            this.bindAddress = bindAddress;
+            this.minPort = minPort;
+            this.maxPort = maxPort;
+            this.size = maxPort - minPort + 1;
+            this.quarantineNanos = quarantineNanos;
+            this.evenBits = minPort % 2 == 0 ? 0x5555555555555555L : 0xAAAAAAAAAAAAAAAAL;
+            
+            this.words = new AtomicLongArray((size + 63) / 64);
+            int tail = size % 64;
+            if (tail != 0) {
+                words.set(words.length() - 1, -1L << tail);
+            }
+            this.available = new AtomicInteger(size);
+        }
+        
+        /**
+         * @param even only take an even port
+         * @param pair also take the port after it, which must be in the same word
+         */
+        int reserve(boolean even, boolean pair) {
+            reclaim(false);
+            if (even || pair) {
+                // Forcing single ports out of quarantine rarely yields a matching port
+                return available.get() > (pair ? 1 : 0) ? search(even ? evenBits : -1L, pair) : -1;
+            }
+            while (true) {
+                int port = available.get() > 0 ? search(-1L, false) : -1;
+                if (port != -1 || !reclaim(true)) {
+                    return port;
+                }
+            }
+        }
+        
+        void release(int port) {
+            if (port < minPort || port > maxPort) {
+                return;
+            }
+            
+            synchronized (quarantine) {
+                quarantine.add(new QuarantinedPort(port, System.nanoTime() + quarantineNanos));
+            }
+        }
+        
+        int getQuarantined() {
+            synchronized (quarantine) {
+                return quarantine.size();
+            }
+        }
+        
+        private int search(long eligible, boolean pair) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int count = words.length();
+            int start = random.nextInt(count);
+            
+            // In the first word, prefer bits at or after a random offset
+            long preferred = -1L << random.nextInt(64);
+            for (int i = 0; i <= count; i++) {
+                int index = (start + i) % count;
+                long mask = i == 0 ? preferred : -1L;
+                while (true) {
+                    long word = words.get(index);
+                    long free = ~word & mask;
+                    long candidates = (pair ? free & (free >>> 1) : free) & eligible;
+                    if (candidates == 0) {
+                        break;
+                    }
+                    long bit = Long.lowestOneBit(candidates);
+                    long claimed = pair ? bit | (bit << 1) : bit;
+                    if (words.compareAndSet(index, word, word | claimed)) {
+                        available.addAndGet(pair ? -2 : -1);
+                        return minPort + index * 64 + Long.numberOfTrailingZeros(bit);
+                    }
+                }
+            }
+            return -1;
+        }
+        
+        /**
+         * Return quarantined ports to the bitmap
+         *
+         * @param force also take the oldest port whose quarantine is not over yet
+         * @return true if a port was returned
+         */
+        private boolean reclaim(boolean force) {
+            long now = System.nanoTime();
+            boolean reclaimed = false;
+            synchronized (quarantine) {
+                QuarantinedPort head;
+                while ((head = quarantine.peek()) != null && (head.releaseAtNanos - now <= 0 || (force && !reclaimed))) {
+                    quarantine.poll();
+                    free(head.port);
+                    reclaimed = true;
+                }
+            }
+            return reclaimed;
+        }
+        
+        private void free(int port) {
+            int offset = port - minPort;
+            int index = offset / 64;
+            long bit = 1L << (offset % 64);
+            while (true) {
+                long word = words.get(index);
+                if ((word & bit) == 0) {
+                    // Released twice
+                    return;
+                }
+                if (words.compareAndSet(index, word, word & ~bit)) {
+                    available.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+    
+    private static final class QuarantinedPort {
+        
+        final int port;
+        final long releaseAtNanos;
+        
+        QuarantinedPort(int port, long releaseAtNanos) {
+            this.port = port;
+            this.releaseAtNanos = releaseAtNanos;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,293 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.handler.DatagramBatcher;
+import com.example.turnserver.handler.RelayHandler;
+import com.example.turnserver.model.Allocation;
+import com.example.turnserver.model.ChannelBindingTable;
+import com.example.turnserver.model.PermissionTable;
+import com.example.turnserver.model.RelayAllocation;
+import com.example.turnserver.util.NetworkUtils;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DatagramPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service managing the relay data plane: one datagram channel per allocation,
+ * bound on the local address and port of the allocated relayed transport address.
+ */
+@Service
+public class RelayService {
+    
+    private static final Logger logger = LoggerFactory.getLogger(RelayService.class);
+    
+    private static final int RELAY_SOCKET_BUFFER_SIZE = 65536;
+    
+    // Permission lifetime as defined in RFC 5766 section 8
+    private static final long PERMISSION_LIFETIME_NANOS = TimeUnit.MINUTES.toNanos(5);
+    
+    // Channel binding lifetime as defined in RFC 5766 section 11
+    private static final long CHANNEL_BINDING_LIFETIME_NANOS = TimeUnit.MINUTES.toNanos(10);
+    
+    private final AllocationRegistry allocationRegistry;
+    private final RelayPortAllocator portAllocator;
+    private final ExpiryWheel expiryWheel;
+    private final DatagramBatcher datagramBatcher;
+    
+    @Autowired
+    public RelayService(AllocationRegistry allocationRegistry, RelayPortAllocator portAllocator,
+                        ExpiryWheel expiryWheel, DatagramBatcher datagramBatcher) {
+        this.allocationRegistry = allocationRegistry;
+        this.portAllocator = portAllocator;
+        this.expiryWheel = expiryWheel;
+        this.datagramBatcher = datagramBatcher;
+    }
+    
+    /**
+     * Register an allocation and open its relay socket.
+     * The relay channel shares the event loop and transport of the server channel
+     * the client talks to. The socket is bound asynchronously; a failed bind closes the relay
+     * again.
+     *
+     * @return the relay, or null if the client already has an allocation or the relayed address is taken
+     */
+    public RelayAllocation openRelay(Allocation allocation, InetSocketAddress relayAddress, Channel serverChannel) {
+        InetSocketAddress clientAddress = new InetSocketAddress(allocation.getClientAddress(), allocation.getClientPort());
+        RelayAllocation relay = new RelayAllocation(
+            allocation.getAllocationId(),
+            allocation.getUsername(),
+            clientAddress,
+            relayAddress,
+            serverChannel
+        );
+        relay.setExpiresAtNanos(System.nanoTime() + TimeUnit.SECONDS.toNanos(allocation.getLifetimeSeconds()));
+        if (!allocationRegistry.add(relay, allocation)) {
+            return null;
+        }
+        
+        Bootstrap bootstrap = new Bootstrap()
+                .group(serverChannel.eventLoop())
+                .channel(serverChannel.getClass())
+                .option(ChannelOption.SO_RCVBUF, RELAY_SOCKET_BUFFER_SIZE)
+                .option(ChannelOption.SO_SNDBUF, RELAY_SOCKET_BUFFER_SIZE)
+                .handler(new RelayHandler(relay, datagramBatcher));
+        datagramBatcher.configure(bootstrap, serverChannel.getClass());
+        
+        ChannelFuture bindFuture = bootstrap.bind(portAllocator.getBindAddress(relayAddress));
+        relay.setBindFuture(bindFuture);
+        scheduleExpiry(relay, allocation.getLifetimeSeconds());
+        
+        bindFuture.addListener(future -> {
+            if (future.isSuccess()) {
+                logger.debug("Relay for allocation {} bound on {}", relay.getAllocationId(), relayAddress);
+            } else {
+                logger.error("Failed to bind relay address {} for allocation {}",
+                             relayAddress, relay.getAllocationId(), future.cause());
+                closeRelay(relay.getAllocationId());
+            }
+        });
+        
+        return relay;
+    }
+    
+    /**
+     * Extend the relay lifetime after a successful Refresh
+     */
+    public void refreshRelay(RelayAllocation relay, int lifetimeSeconds) {
+        relay.setExpiresAtNanos(System.nanoTime() + TimeUnit.SECONDS.toNanos(lifetimeSeconds));
+        allocationRegistry.refreshed(relay, lifetimeSeconds);
+    }
+    
+    /**
+     * Remove an allocation, close its relay socket and release its relayed transport address
+     */
+    public RelayAllocation closeRelay(String allocationId) {
+        RelayAllocation relay = allocationRegistry.findByAllocationId(allocationId);
+        if (relay == null || !allocationRegistry.remove(relay)) {
+            return null;
+        }
+        
+        Channel relayChannel = relay.getRelayChannel();
+        if (relayChannel != null) {
+            relayChannel.close();
+        }
+        portAllocator.release(relay.getRelayAddress());
+        clearTables(relay);
+        
+        logger.debug("Closed relay for allocation {} on {}", allocationId, relay.getRelayAddress());
+        return relay;
+    }
+    
+    /**
+     * Find the relay owned by a client transport address
+     */
+    public RelayAllocation findByClient(InetSocketAddress clientAddress) {
+        return allocationRegistry.findByFiveTuple(clientAddress);
+    }
+    
+    /**
+     * Find the relay of an allocation
+     */
+    public RelayAllocation findByAllocationId(String allocationId) {
+        return allocationRegistry.findByAllocationId(allocationId);
+    }
+    
+    /**
+     * Get all active relays
+     */
+    public Collection<RelayAllocation> getRelays() {
+        return allocationRegistry.getAllocations();
+    }
+    
+    /**
+     * Install or refresh the permission for a peer IPv4 address.
+     * Must be called on the event loop of the relay.
+     *
+     * @return true if the permission is new
+     */
+    public boolean installPermission(RelayAllocation relay, InetAddress peerAddress) {
+        int address = NetworkUtils.ipv4ToInt(peerAddress);
+        boolean created = relay.getPermissions().install(address, System.nanoTime() + PERMISSION_LIFETIME_NANOS);
+        if (created) {
+            expiryWheel.schedule(relay.getServerChannel().eventLoop(),
+                () -> checkPermissionExpiry(relay, address), PERMISSION_LIFETIME_NANOS, TimeUnit.NANOSECONDS);
+        }
+        return created;
+    }
+    
+    /**
+     * Create or refresh a channel binding together with its implicit permission.
+     * Must be called on the event loop of the relay, after checking for conflicting bindings.
+     *
+     * @return true if the binding is new
+     */
+    public boolean bindChannel(RelayAllocation relay, int channelNumber, InetSocketAddress peer) {
+        long peerKey = ChannelBindingTable.peerKey(NetworkUtils.ipv4ToInt(peer.getAddress()), peer.getPort());
+        boolean created = relay.getChannelBindings().bind(
+            channelNumber, peer, peerKey, System.nanoTime() + CHANNEL_BINDING_LIFETIME_NANOS);
+        if (created) {
+            expiryWheel.schedule(relay.getServerChannel().eventLoop(),
+                () -> checkChannelExpiry(relay, channelNumber), CHANNEL_BINDING_LIFETIME_NANOS, TimeUnit.NANOSECONDS);
+        }
+        
+        installPermission(relay, peer.getAddress());
+        return created;
+    }
+    
+    /**
+     * Send client data to a peer from the relayed transport address.
+     * Takes ownership of the buffer.
+     */
+    public void sendToPeer(RelayAllocation relay, InetSocketAddress peer, ByteBuf data) {
+        Channel relayChannel = relay.getRelayChannel();
+        relay.recordRelayed(data.readableBytes());
+        datagramBatcher.write(relayChannel, new DatagramPacket(data, peer));
+    }
+    
+    /**
+     * Schedule relay teardown on the expiry wheel, run on the relay event loop, once the
+     * allocation lifetime lapses.
+     * Refreshes only move the deadline; the timer re-arms itself when it fires early.
+     */
+    private void scheduleExpiry(RelayAllocation relay, int lifetimeSeconds) {
+        long lifetimeNanos = TimeUnit.SECONDS.toNanos(lifetimeSeconds);
+        relay.setExpiresAtNanos(System.nanoTime() + lifetimeNanos);
+        expiryWheel.schedule(relay.getServerChannel().eventLoop(),
+            () -> checkExpiry(relay), lifetimeNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Drop the permissions and channel bindings of a closed relay, on its event loop.
+     * Their pending timers then find nothing to re-arm for.
+     */
+    private void clearTables(RelayAllocation relay) {
+        EventLoop eventLoop = relay.getServerChannel().eventLoop();
+        if (eventLoop.inEventLoop()) {
+            relay.getPermissions().clear();
+            relay.getChannelBindings().clear();
+            return;
+        }
+        
+        try {
+            eventLoop.execute(() -> clearTables(relay));
+        } catch (RejectedExecutionException e) {
+            // The event loop is shutting down, and its timers with it
+        }
+    }
+    
+    /**
+     * Permission timer: drops the permission once it lapsed, or re-arms itself
+     * for the remaining time if the permission was refreshed meanwhile.
+     * Stops once the relay is closed.
+     */
+    private void checkPermissionExpiry(RelayAllocation relay, int address) {
+        if (allocationRegistry.findByAllocationId(relay.getAllocationId()) != relay) {
+            return;
+        }
+        
+        PermissionTable permissions = relay.getPermissions();
+        long deadline = permissions.deadline(address);
+        if (deadline == 0L) {
+            return;
+        }
+        
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            expiryWheel.schedule(relay.getServerChannel().eventLoop(),
+                () -> checkPermissionExpiry(relay, address), remaining, TimeUnit.NANOSECONDS);
+        } else {
+            permissions.remove(address);
+        }
+    }
+    
+    /**
+     * Channel binding timer, re-armed the same way as permission timers
+     */
+    private void checkChannelExpiry(RelayAllocation relay, int channelNumber) {
+        if (allocationRegistry.findByAllocationId(relay.getAllocationId()) != relay) {
+            return;
+        }
+        
+        ChannelBindingTable bindings = relay.getChannelBindings();
+        long deadline = bindings.deadline(channelNumber);
+        if (deadline == 0L) {
+            return;
+        }
+        
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            expiryWheel.schedule(relay.getServerChannel().eventLoop(),
+                () -> checkChannelExpiry(relay, channelNumber), remaining, TimeUnit.NANOSECONDS);
+        } else {
+            bindings.remove(channelNumber);
+        }
+    }
+    
+    private void checkExpiry(RelayAllocation relay) {
+        if (allocationRegistry.findByAllocationId(relay.getAllocationId()) != relay) {
+            return;
+        }
+        
+        long remaining = relay.getExpiresAtNanos() - System.nanoTime();
+        if (remaining > 0) {
+            expiryWheel.schedule(relay.getServerChannel().eventLoop(),
+                () -> checkExpiry(relay), remaining, TimeUnit.NANOSECONDS);
+        } else {
+            logger.info("Relay for allocation {} expired", relay.getAllocationId());
+            closeRelay(relay.getAllocationId());
+        }
+    }
+}
\ No newline at end of file
@@ -7,7 +7,6 @@ import com.example.turnserver.repository.UserRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -26,23 +25,20 @@ public class StatisticsService {
     private final UserRepository userRepository;
     private final TurnSessionRepository sessionRepository;
     private final AllocationRepository allocationRepository;
+    private final RelayPortAllocator portAllocator;
     
     private final LocalDateTime serverStartTime;
-    private final int minPort;
-    private final int maxPort;
     
     @Autowired
     public StatisticsService(UserRepository userRepository,
                            TurnSessionRepository sessionRepository,
                            AllocationRepository allocationRepository,
-                           @Value("${turn.server.min-port:49152}") int minPort,
-                           @Value("${turn.server.max-port:65535}") int maxPort) {
+                           RelayPortAllocator portAllocator) {
         this.userRepository = userRepository;
         this.sessionRepository = sessionRepository;
         this.allocationRepository = allocationRepository;
+        this.portAllocator = portAllocator;
         this.serverStartTime = LocalDateTime.now();
-        this.minPort = minPort;
-        this.maxPort = maxPort;
     }
     
     /**
@@ -87,8 +83,9 @@ public class StatisticsService {
         stats.setServerStartTime(serverStartTime);
         stats.setUptimeSeconds(Duration.between(serverStartTime, now).getSeconds());
         stats.setServerVersion("1.0.0");
-        stats.setConfiguredPortRange(maxPort - minPort + 1);
-        stats.setAvailablePorts(calculateAvailablePorts(now));
+        stats.setConfiguredPortRange(portAllocator.getRangeSize());
+        stats.setAvailablePorts(portAllocator.getAvailablePorts());
+        stats.setRelayAddresses(portAllocator.getCapacity());
         
         // Performance metrics (simplified calculations)
         stats.setAvgSessionDuration(calculateAverageSessionDuration());
@@ -194,17 +191,6 @@ public class StatisticsService {
         return 0L;
     }
     
-    private int calculateAvailablePorts(LocalDateTime now) {
-        try {
-            java.util.List<Integer> usedPorts = allocationRepository.findUsedRelayPorts(now);
-            int totalPorts = maxPort - minPort + 1;
-            return totalPorts - usedPorts.size();
-        } catch (Exception e) {
-            logger.warn("Error calculating available ports", e);
-            return maxPort - minPort + 1;
-        }
-    }
-    
     private double calculateAverageSessionDuration() {
         // This would be implemented to calculate actual average session duration
         // For now, returning 0 as placeholder
@@ -1,33 +1,36 @@
 package com.example.turnserver.service;
 
+import com.example.turnserver.dto.RelayAddressCapacity;
 import com.example.turnserver.exception.TurnException;
 import com.example.turnserver.model.Allocation;
+import com.example.turnserver.model.ChannelBindingTable;
+import com.example.turnserver.model.RelayAllocation;
 import com.example.turnserver.model.TurnSession;
 import com.example.turnserver.protocol.*;
-import com.example.turnserver.repository.AllocationRepository;
-import com.example.turnserver.repository.TurnSessionRepository;
 import com.example.turnserver.util.CryptoUtils;
 import com.example.turnserver.util.NetworkUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
-import java.time.LocalDateTime;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Core TURN server service handling TURN protocol operations
+ * Core TURN server service handling TURN protocol operations.
+ *
+ * Allocation and session state lives in the {@link AllocationRegistry}; requests never wait
+ * for the database.
  */
 @Service
-@Transactional
 public class TurnServerService {
     
     private static final Logger logger = LoggerFactory.getLogger(TurnServerService.class);
@@ -35,67 +38,76 @@ public class TurnServerService {
     private static final int DEFAULT_ALLOCATION_LIFETIME = 600; // 10 minutes
     private static final int MAX_ALLOCATION_LIFETIME = 3600; // 1 hour
     private static final int UDP_PROTOCOL = 17;
+    private static final byte[] SOFTWARE = "Netty TURN Server 1.0".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    private static final int MIN_CHANNEL_NUMBER = 0x4000;
+    private static final int MAX_CHANNEL_NUMBER = 0x7FFE;
+    // R bit of EVEN-PORT: also reserve the next port
+    private static final int EVEN_PORT_RESERVE_BIT = 0x80;
     
-    private final TurnSessionRepository sessionRepository;
-    private final AllocationRepository allocationRepository;
+    private final AllocationRegistry allocationRegistry;
     private final AuthService authService;
-    
-    private final String externalIp;
-    private final int minPort;
-    private final int maxPort;
-    private final String realm;
-    
-    // Active sessions and allocations cache
-    private final Set<String> activeSessions = ConcurrentHashMap.newKeySet();
-    private final Set<String> activeAllocations = ConcurrentHashMap.newKeySet();
+    private final RelayService relayService;
+    private final RelayPortAllocator portAllocator;
+    private final PortReservationService portReservationService;
     
     @Autowired
-    public TurnServerService(TurnSessionRepository sessionRepository,
-                           AllocationRepository allocationRepository,
+    public TurnServerService(AllocationRegistry allocationRegistry,
                            AuthService authService,
-                           @Value("${turn.server.external-ip:127.0.0.1}") String externalIp,
-                           @Value("${turn.server.min-port:49152}") int minPort,
-                           @Value("${turn.server.max-port:65535}") int maxPort,
-                           @Value("${turn.server.realm:turn.example.com}") String realm) {
-        this.sessionRepository = sessionRepository;
-        this.allocationRepository = allocationRepository;
+                           RelayService relayService,
+                           RelayPortAllocator portAllocator,
+                           PortReservationService portReservationService) {
+        this.allocationRegistry = allocationRegistry;
         this.authService = authService;
-        this.externalIp = externalIp;
-        this.minPort = minPort;
-        this.maxPort = maxPort;
-        this.realm = realm;
+        this.relayService = relayService;
+        this.portAllocator = portAllocator;
+        this.portReservationService = portReservationService;
     }
     
     /**
      * Process STUN Binding request
      */
-    public StunMessage processBindingRequest(StunMessage request, String clientAddress, int clientPort) {
-        logger.debug("Processing STUN Binding request from {}:{}", clientAddress, clientPort);
-        
-        StunMessage response = new StunMessage(MessageType.BINDING_RESPONSE, request.getTransactionId());
-        
-        // Add XOR-MAPPED-ADDRESS attribute
-        java.net.InetSocketAddress clientSocketAddress = new java.net.InetSocketAddress(clientAddress, clientPort);
-        StunAttribute xorMappedAddr = StunUtils.createXorMappedAddressAttribute(clientSocketAddress, request.getTransactionId());
-        response.addAttribute(xorMappedAddr);
-        
-        // Add SOFTWARE attribute
-        response.addAttribute(StunUtils.createSoftwareAttribute("Netty TURN Server 1.0"));
-        
-        logger.debug("Created STUN Binding response");
-        return response;
+    public ByteBuf processBindingRequest(StunMessageView request, InetSocketAddress clientAddress,
+                                         ByteBufAllocator alloc) {
+        // The response is written in one pass, copying the transaction ID from the request buffer
+        int size = StunMessage.HEADER_LENGTH
+                + StunMessageWriter.attributeSize(clientAddress.getAddress() instanceof java.net.Inet6Address ? 20 : 8)
+                + StunMessageWriter.attributeSize(SOFTWARE.length);
+        
+        return StunMessageWriter.begin(alloc.ioBuffer(size), MessageType.BINDING_RESPONSE,
+                                       request.getBuffer(), request.getTransactionIdIndex())
+                .xorAddress(AttributeType.XOR_MAPPED_ADDRESS, clientAddress)
+                .attribute(AttributeType.SOFTWARE, SOFTWARE)
+                .finish();
+    }
+    
+    /**
+     * Validate the NONCE of a request, once for all of its processing
+     */
+    public NonceService.Status checkNonce(StunMessage request, String clientAddress) {
+        return authService.checkNonce(request, clientAddress);
+    }
+    
+    /**
+     * Start loading the credential of a request that needs a database lookup
+     *
+     * @return the pending load, after which the request should be processed, or null if it can
+     *         be processed right away
+     */
+    public CompletableFuture<?> loadCredential(StunMessage request, NonceService.Status nonceStatus) {
+        return authService.loadCredential(request, nonceStatus);
     }
     
     /**
      * Process TURN Allocate request
      */
-    public StunMessage processAllocateRequest(StunMessage request, String clientAddress, int clientPort) {
+    public StunMessage processAllocateRequest(StunMessage request, String clientAddress, int clientPort,
+                                              Channel serverChannel, NonceService.Status nonceStatus) {
         logger.debug("Processing TURN Allocate request from {}:{}", clientAddress, clientPort);
         
         // Authenticate the request
-        if (!authService.authenticateMessage(request, clientAddress)) {
+        if (!authService.authenticateMessage(request, clientAddress, nonceStatus)) {
             logger.warn("Authentication failed for allocate request from {}", clientAddress);
-            return authService.createAuthenticationChallenge(request);
+            return authService.createAuthenticationChallenge(request, clientAddress, nonceStatus);
         }
         
         // Extract username
@@ -116,20 +128,28 @@ public class TurnServerService {
             throw TurnException.unsupportedTransportProtocol("Only UDP transport is supported");
         }
         
-        // Get or create session
-        TurnSession session = getOrCreateSession(username, clientAddress, clientPort);
+        // Check EVEN-PORT and RESERVATION-TOKEN, which are mutually exclusive
+        StunAttribute evenPortAttr = request.getAttribute(AttributeType.EVEN_PORT);
+        StunAttribute tokenAttr = request.getAttribute(AttributeType.RESERVATION_TOKEN);
+        if (evenPortAttr != null && tokenAttr != null) {
+            throw TurnException.badRequest("EVEN-PORT and RESERVATION-TOKEN are mutually exclusive");
+        }
+        if (evenPortAttr != null && evenPortAttr.getLength() < 1) {
+            throw TurnException.badRequest("Invalid EVEN-PORT attribute");
+        }
+        if (tokenAttr != null && tokenAttr.getLength() != 8) {
+            throw TurnException.badRequest("Invalid RESERVATION-TOKEN attribute");
+        }
+        boolean reserveNext = evenPortAttr != null && (evenPortAttr.getValue()[0] & EVEN_PORT_RESERVE_BIT) != 0;
         
         // Check for existing allocation
-        List<Allocation> existingAllocations = allocationRepository.findBySessionId(session.getSessionId());
-        if (!existingAllocations.isEmpty()) {
+        InetSocketAddress client = new InetSocketAddress(clientAddress, clientPort);
+        if (allocationRegistry.findByFiveTuple(client) != null) {
             throw TurnException.allocationMismatch("Allocation already exists for this session");
         }
         
-        // Allocate relay address and port
-        int relayPort = allocatePort();
-        if (relayPort == -1) {
-            throw TurnException.insufficientCapacity("No available ports for allocation");
-        }
+        // Get or create session
+        TurnSession session = allocationRegistry.getOrCreateSession(username, clientAddress, clientPort);
         
         // Get lifetime
         int lifetime = DEFAULT_ALLOCATION_LIFETIME;
@@ -139,49 +159,78 @@ public class TurnServerService {
             lifetime = Math.min(requestedLifetime, MAX_ALLOCATION_LIFETIME);
         }
         
-        // Create allocation
+        // Reserve a relayed transport address, or claim a reserved one, and open the relay socket;
+        // the address is released when the relay closes
+        InetSocketAddress relayAddress;
+        if (tokenAttr != null) {
+            relayAddress = portReservationService.claim(java.nio.ByteBuffer.wrap(tokenAttr.getValue()).getLong());
+            if (relayAddress == null) {
+                throw TurnException.insufficientCapacity("Unknown or expired RESERVATION-TOKEN");
+            }
+        } else if (evenPortAttr != null) {
+            relayAddress = portAllocator.reserveEven(reserveNext);
+        } else {
+            relayAddress = portAllocator.reserve();
+        }
+        if (relayAddress == null) {
+            throw TurnException.insufficientCapacity("No available ports for allocation");
+        }
+        InetSocketAddress nextAddress = reserveNext
+                ? new InetSocketAddress(relayAddress.getAddress(), relayAddress.getPort() + 1) : null;
+        
         Allocation allocation = new Allocation(
             CryptoUtils.generateAllocationId(),
             session.getSessionId(),
             username,
-            externalIp,
-            relayPort,
+            relayAddress.getAddress().getHostAddress(),
+            relayAddress.getPort(),
             clientAddress,
             clientPort,
             "UDP",
             lifetime
         );
-        
-        allocationRepository.save(allocation);
-        activeAllocations.add(allocation.getAllocationId());
+        if (relayService.openRelay(allocation, relayAddress, serverChannel) == null) {
+            // A concurrent Allocate from the same client won
+            portAllocator.release(relayAddress);
+            if (nextAddress != null) {
+                portAllocator.release(nextAddress);
+            }
+            throw TurnException.allocationMismatch("Allocation already exists for this session");
+        }
         
         // Create response
         StunMessage response = new StunMessage(MessageType.ALLOCATE_RESPONSE, request.getTransactionId());
         
         // Add XOR-RELAYED-ADDRESS attribute
-        java.net.InetSocketAddress relayAddress = new java.net.InetSocketAddress(externalIp, relayPort);
         response.addAttribute(StunUtils.createXorRelayedAddressAttribute(relayAddress, request.getTransactionId()));
         
         // Add LIFETIME attribute
         response.addAttribute(StunUtils.createLifetimeAttribute(lifetime));
         
-        // Add MESSAGE-INTEGRITY attribute
-        response.addAttribute(authService.createMessageIntegrityAttribute(response, username));
+        // Hand the next port over to a reservation and return its token
+        if (nextAddress != null) {
+            long token = portReservationService.reserve(nextAddress);
+            response.addAttribute(StunUtils.createReservationTokenAttribute(token));
+        }
+        
+        // MESSAGE-INTEGRITY is appended when the response is encoded
+        authService.signMessage(response, request);
         
-        logger.info("Created allocation {} for user {} on port {}", allocation.getAllocationId(), username, relayPort);
+        logger.info("Created allocation {} for user {} on {}", allocation.getAllocationId(), username, relayAddress);
         return response;
     }
     
     /**
      * Process TURN Refresh request
      */
-    public StunMessage processRefreshRequest(StunMessage request, String clientAddress, int clientPort) {
+    public StunMessage processRefreshRequest(StunMessage request, String clientAddress, int clientPort,
+                                             NonceService.Status nonceStatus) {
         logger.debug("Processing TURN Refresh request from {}:{}", clientAddress, clientPort);
         
         // Authenticate the request
-        if (!authService.authenticateMessage(request, clientAddress)) {
+        if (!authService.authenticateMessage(request, clientAddress, nonceStatus)) {
             logger.warn("Authentication failed for refresh request from {}", clientAddress);
-            return authService.createAuthenticationChallenge(request);
+            return authService.createAuthenticationChallenge(request, clientAddress, nonceStatus);
         }
         
         // Extract username
@@ -191,26 +240,12 @@ public class TurnServerService {
         }
         String username = usernameAttr.getValueAsString();
         
-        // Find session
-        Optional<TurnSession> sessionOpt = sessionRepository.findByUsername(username)
-            .stream()
-            .filter(s -> s.getClientAddress().equals(clientAddress) && s.getClientPort().equals(clientPort))
-            .findFirst();
-        
-        if (!sessionOpt.isPresent()) {
-            throw TurnException.allocationMismatch("No session found for this client");
-        }
-        
-        TurnSession session = sessionOpt.get();
-        
         // Find allocation
-        List<Allocation> allocations = allocationRepository.findBySessionId(session.getSessionId());
-        if (allocations.isEmpty()) {
-            throw TurnException.allocationMismatch("No allocation found for this session");
+        RelayAllocation relay = allocationRegistry.findByFiveTuple(new InetSocketAddress(clientAddress, clientPort));
+        if (relay == null || !relay.getUsername().equals(username)) {
+            throw TurnException.allocationMismatch("No allocation found for this client");
         }
         
-        Allocation allocation = allocations.get(0);
-        
         // Get requested lifetime
         int lifetime = 0; // Default to 0 (delete allocation)
         StunAttribute lifetimeAttr = request.getAttribute(AttributeType.LIFETIME);
@@ -221,130 +256,204 @@ public class TurnServerService {
         // Refresh or delete allocation
         if (lifetime == 0) {
             // Delete allocation
-            allocationRepository.delete(allocation);
-            activeAllocations.remove(allocation.getAllocationId());
-            logger.info("Deleted allocation {} for user {}", allocation.getAllocationId(), username);
+            relayService.closeRelay(relay.getAllocationId());
+            logger.info("Deleted allocation {} for user {}", relay.getAllocationId(), username);
         } else {
             // Refresh allocation
-            allocation.refresh(lifetime);
-            allocationRepository.save(allocation);
+            relayService.refreshRelay(relay, lifetime);
             logger.info("Refreshed allocation {} for user {} with lifetime {}", 
-                       allocation.getAllocationId(), username, lifetime);
+                       relay.getAllocationId(), username, lifetime);
         }
         
         // Create response
         StunMessage response = new StunMessage(MessageType.REFRESH_RESPONSE, request.getTransactionId());
         response.addAttribute(StunUtils.createLifetimeAttribute(lifetime));
-        response.addAttribute(authService.createMessageIntegrityAttribute(response, username));
+        authService.signMessage(response, request);
         
         return response;
     }
     
     /**
-     * Get or create a TURN session
+     * Process TURN CreatePermission request
      */
-    private TurnSession getOrCreateSession(String username, String clientAddress, int clientPort) {
-        // Look for existing session
-        Optional<TurnSession> existingSession = sessionRepository.findByUsername(username)
-            .stream()
-            .filter(s -> s.getClientAddress().equals(clientAddress) && s.getClientPort().equals(clientPort))
-            .filter(s -> !s.isExpired())
-            .findFirst();
-        
-        if (existingSession.isPresent()) {
-            TurnSession session = existingSession.get();
-            session.updateActivity();
-            sessionRepository.save(session);
-            return session;
-        }
-        
-        // Create new session
-        TurnSession session = new TurnSession(
-            CryptoUtils.generateSessionId(),
-            username,
-            clientAddress,
-            clientPort
-        );
-        session.setRealm(realm);
-        session.setExpiresAt(LocalDateTime.now().plusMinutes(30)); // 30 minutes session lifetime
+    public StunMessage processCreatePermissionRequest(StunMessage request, String clientAddress, int clientPort,
+                                                      NonceService.Status nonceStatus) {
+        logger.debug("Processing TURN CreatePermission request from {}:{}", clientAddress, clientPort);
+        
+        // Authenticate the request
+        if (!authService.authenticateMessage(request, clientAddress, nonceStatus)) {
+            logger.warn("Authentication failed for CreatePermission request from {}", clientAddress);
+            return authService.createAuthenticationChallenge(request, clientAddress, nonceStatus);
+        }
+        
+        // Extract username
+        StunAttribute usernameAttr = request.getAttribute(AttributeType.USERNAME);
+        if (usernameAttr == null) {
+            throw TurnException.badRequest("Missing USERNAME attribute");
+        }
+        String username = usernameAttr.getValueAsString();
+        
+        // Find allocation
+        RelayAllocation relay = relayService.findByClient(new InetSocketAddress(clientAddress, clientPort));
+        if (relay == null) {
+            throw TurnException.allocationMismatch("No allocation found for this client");
+        }
+        if (!relay.getUsername().equals(username)) {
+            throw TurnException.wrongCredentials("Allocation belongs to another user");
+        }
+        
+        // Validate all peer addresses before installing any permission
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (StunAttribute attr : request.getAttributes()) {
+            if (attr.getType() == AttributeType.XOR_PEER_ADDRESS) {
+                InetSocketAddress peer = StunUtils.parseXorAddressAttribute(attr, request.getTransactionId());
+                if (!(peer.getAddress() instanceof Inet4Address)) {
+                    throw TurnException.peerAddressFamilyMismatch("Peer address family does not match relayed address");
+                }
+                if (peer.getAddress().isAnyLocalAddress()) {
+                    throw TurnException.forbidden("Invalid peer address");
+                }
+                peers.add(peer);
+            }
+        }
+        if (peers.isEmpty()) {
+            throw TurnException.badRequest("Missing XOR-PEER-ADDRESS attribute");
+        }
+        
+        for (InetSocketAddress peer : peers) {
+            relayService.installPermission(relay, peer.getAddress());
+        }
         
-        sessionRepository.save(session);
-        activeSessions.add(session.getSessionId());
+        // Keep permissions_count up to date
+        allocationRegistry.countersChanged(relay);
         
-        logger.info("Created new session {} for user {}", session.getSessionId(), username);
-        return session;
+        // Create response
+        StunMessage response = new StunMessage(MessageType.CREATE_PERMISSION_RESPONSE, request.getTransactionId());
+        authService.signMessage(response, request);
+        
+        logger.debug("Installed {} permission(s) on allocation {}", peers.size(), relay.getAllocationId());
+        return response;
     }
     
     /**
-     * Allocate an available port
+     * Process TURN ChannelBind request
      */
-    private int allocatePort() {
-        // Get used ports
-        List<Integer> usedPorts = allocationRepository.findUsedRelayPorts(LocalDateTime.now());
-        
-        // Find available port
-        for (int port = minPort; port <= maxPort; port++) {
-            if (!usedPorts.contains(port)) {
-                return port;
-            }
+    public StunMessage processChannelBindRequest(StunMessage request, String clientAddress, int clientPort,
+                                                 NonceService.Status nonceStatus) {
+        logger.debug("Processing TURN ChannelBind request from {}:{}", clientAddress, clientPort);
+        
+        // Authenticate the request
+        if (!authService.authenticateMessage(request, clientAddress, nonceStatus)) {
+            logger.warn("Authentication failed for ChannelBind request from {}", clientAddress);
+            return authService.createAuthenticationChallenge(request, clientAddress, nonceStatus);
+        }
+        
+        // Extract username
+        StunAttribute usernameAttr = request.getAttribute(AttributeType.USERNAME);
+        if (usernameAttr == null) {
+            throw TurnException.badRequest("Missing USERNAME attribute");
+        }
+        String username = usernameAttr.getValueAsString();
+        
+        // Find allocation
+        RelayAllocation relay = relayService.findByClient(new InetSocketAddress(clientAddress, clientPort));
+        if (relay == null) {
+            throw TurnException.allocationMismatch("No allocation found for this client");
+        }
+        if (!relay.getUsername().equals(username)) {
+            throw TurnException.wrongCredentials("Allocation belongs to another user");
         }
         
-        logger.warn("No available ports in range {}-{}", minPort, maxPort);
-        return -1;
+        // Check CHANNEL-NUMBER attribute
+        StunAttribute channelAttr = request.getAttribute(AttributeType.CHANNEL_NUMBER);
+        if (channelAttr == null || channelAttr.getLength() != 4) {
+            throw TurnException.badRequest("Missing or invalid CHANNEL-NUMBER attribute");
+        }
+        int channelNumber = channelAttr.getValueAsShort() & 0xFFFF;
+        if (channelNumber < MIN_CHANNEL_NUMBER || channelNumber > MAX_CHANNEL_NUMBER) {
+            throw TurnException.badRequest("Channel number out of range");
+        }
+        
+        // Check XOR-PEER-ADDRESS attribute
+        StunAttribute peerAttr = request.getAttribute(AttributeType.XOR_PEER_ADDRESS);
+        if (peerAttr == null) {
+            throw TurnException.badRequest("Missing XOR-PEER-ADDRESS attribute");
+        }
+        InetSocketAddress peer = StunUtils.parseXorAddressAttribute(peerAttr, request.getTransactionId());
+        if (!(peer.getAddress() instanceof Inet4Address)) {
+            throw TurnException.peerAddressFamilyMismatch("Peer address family does not match relayed address");
+        }
+        if (peer.getAddress().isAnyLocalAddress() || peer.getPort() == 0) {
+            throw TurnException.badRequest("Invalid peer address");
+        }
+        
+        // A channel is bound to exactly one peer and a peer to exactly one channel
+        InetSocketAddress boundPeer = relay.getChannelPeer(channelNumber);
+        if (boundPeer != null && !boundPeer.equals(peer)) {
+            throw TurnException.badRequest("Channel already bound to a different peer");
+        }
+        long peerKey = ChannelBindingTable.peerKey(NetworkUtils.ipv4ToInt(peer.getAddress()), peer.getPort());
+        int boundChannel = relay.getPeerChannel(peerKey);
+        if (boundChannel != 0 && boundChannel != channelNumber) {
+            throw TurnException.badRequest("Peer already bound to a different channel");
+        }
+        
+        boolean created = relayService.bindChannel(relay, channelNumber, peer);
+        
+        // The binding installs a permission, so keep permissions_count up to date
+        allocationRegistry.countersChanged(relay);
+        
+        // Create response
+        StunMessage response = new StunMessage(MessageType.CHANNEL_BIND_RESPONSE, request.getTransactionId());
+        authService.signMessage(response, request);
+        
+        logger.debug("{} channel {} to {} on allocation {}", created ? "Bound" : "Refreshed",
+                     channelNumber, peer, relay.getAllocationId());
+        return response;
     }
     
     /**
-     * Clean up expired sessions and allocations
+     * Close relays whose lifetime lapsed, drop expired sessions and purge expired rows.
+     * Expiry normally happens on the expiry wheel as deadlines lapse; this full sweep only
+     * backs the manual cleanup endpoint.
      */
-    @Scheduled(fixedRate = 60000) // Run every minute
     @Async
     public void cleanupExpiredResources() {
-        LocalDateTime now = LocalDateTime.now();
-        
-        // Clean up expired sessions
-        int expiredSessions = sessionRepository.deleteExpiredSessions(now);
-        if (expiredSessions > 0) {
-            logger.info("Cleaned up {} expired sessions", expiredSessions);
+        long now = System.nanoTime();
+        int expiredAllocations = 0;
+        for (RelayAllocation relay : allocationRegistry.getAllocations()) {
+            if (relay.getExpiresAtNanos() - now <= 0 && relayService.closeRelay(relay.getAllocationId()) != null) {
+                expiredAllocations++;
+            }
         }
-        
-        // Clean up expired allocations
-        int expiredAllocations = allocationRepository.deleteExpiredAllocations(now);
         if (expiredAllocations > 0) {
             logger.info("Cleaned up {} expired allocations", expiredAllocations);
         }
         
-        // Update cache
-        refreshCaches();
-    }
-    
-    /**
-     * Refresh internal caches
-     */
-    private void refreshCaches() {
-        LocalDateTime now = LocalDateTime.now();
-        
-        // Update active sessions cache
-        activeSessions.clear();
-        sessionRepository.findActiveSessions(now)
-            .forEach(session -> activeSessions.add(session.getSessionId()));
-        
-        // Update active allocations cache
-        activeAllocations.clear();
-        allocationRepository.findActiveAllocations(now)
-            .forEach(allocation -> activeAllocations.add(allocation.getAllocationId()));
+        int expiredSessions = allocationRegistry.removeExpiredSessions();
+        if (expiredSessions > 0) {
+            logger.info("Cleaned up {} expired sessions", expiredSessions);
+        }
     }
     
     /**
      * Get active session count
      */
     public long getActiveSessionCount() {
-        return activeSessions.size();
+        return allocationRegistry.getSessionCount();
     }
     
     /**
      * Get active allocation count
      */
     public long getActiveAllocationCount() {
-        return activeAllocations.size();
+        return allocationRegistry.getAllocationCount();
+    }
+    
+    /**
+     * Get the port capacity of every relay address
+     */
+    public List<RelayAddressCapacity> getRelayCapacity() {
+        return portAllocator.getCapacity();
     }
 }
\ No newline at end of file
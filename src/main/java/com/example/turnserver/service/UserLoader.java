@@ -0,0 +1,177 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.model.User;
+import com.example.turnserver.repository.UserRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batching loader for user lookups by username, in the style of DataLoader.
+ *
+ * Concurrent lookups are coalesced into one WHERE username IN (...) query, and lookups of a
+ * username already queued or being loaded share its result. The first lookup to find no batch
+ * pending schedules one on the loader thread after the batch window, and a full batch is run
+ * right away. The loader thread then runs queries until the queue is empty; lookups arriving
+ * while a query runs form the next batch, so under a reconnect storm the single SQLite
+ * connection sees a few large queries instead of hundreds of small ones.
+ *
+ * Lookups never block the caller: the window and the queries run on the loader thread, and
+ * the returned future completes there.
+ */
+@Service
+public class UserLoader {
+    
+    private static final Logger logger = LoggerFactory.getLogger(UserLoader.class);
+    
+    // SQLite allows at most 999 bound parameters per statement
+    private static final int MAX_BATCH_SIZE_LIMIT = 500;
+    
+    private final UserRepository userRepository;
+    private final int maxBatchSize;
+    private final long batchWindowNanos;
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("TurnUserLoader", true));
+    
+    private final Object lock = new Object();
+    
+    // Usernames waiting for the next batch, and every username queued or being loaded
+    private final Map<String, CompletableFuture<Optional<User>>> queued = new LinkedHashMap<>();
+    private final Map<String, CompletableFuture<Optional<User>>> inFlight = new HashMap<>();
+    private boolean scheduled;
+    
+    private final DistributionSummary batchSize;
+    private final Timer waitTime;
+    
+    @Autowired
+    public UserLoader(UserRepository userRepository,
+                      MeterRegistry meterRegistry,
+                      @Value("${turn.server.user-loader.max-batch-size:64}") int maxBatchSize,
+                      @Value("${turn.server.user-loader.batch-window-micros:2000}") long batchWindowMicros) {
+        this.userRepository = userRepository;
+        this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, MAX_BATCH_SIZE_LIMIT));
+        this.batchWindowNanos = TimeUnit.MICROSECONDS.toNanos(batchWindowMicros);
+        
+        this.batchSize = DistributionSummary.builder("turn.auth.user.loader.batch.size")
+                .description("Usernames per user lookup query")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.waitTime = Timer.builder("turn.auth.user.loader.wait")
+                .description("Time a lookup waited for its user")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+    
+    /**
+     * Look up a user by username, batched with concurrent lookups
+     *
+     * @return a future completed on the loader thread
+     */
+    public CompletableFuture<Optional<User>> load(String username) {
+        long start = System.nanoTime();
+        CompletableFuture<Optional<User>> future;
+        
+        synchronized (lock) {
+            future = inFlight.get(username);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                inFlight.put(username, future);
+                queued.put(username, future);
+                if (queued.size() == maxBatchSize) {
+                    executor.execute(this::runBatches);
+                } else if (!scheduled) {
+                    scheduled = true;
+                    executor.schedule(this::runBatches, batchWindowNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        
+        future.whenComplete((user, e) -> waitTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        return future;
+    }
+    
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Loader thread: query batches until nothing is queued
+     */
+    private void runBatches() {
+        try {
+            while (true) {
+                Map<String, CompletableFuture<Optional<User>>> batch = new HashMap<>();
+                synchronized (lock) {
+                    Iterator<Map.Entry<String, CompletableFuture<Optional<User>>>> iterator = queued.entrySet().iterator();
+                    while (iterator.hasNext() && batch.size() < maxBatchSize) {
+                        Map.Entry<String, CompletableFuture<Optional<User>>> entry = iterator.next();
+                        batch.put(entry.getKey(), entry.getValue());
+                        iterator.remove();
+                    }
+                    if (batch.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                loadBatch(batch);
+            }
+        } catch (RuntimeException | Error e) {
+            // Let the next lookup schedule a batch again
+            synchronized (lock) {
+                scheduled = false;
+            }
+            throw e;
+        }
+    }
+    
+    private void loadBatch(Map<String, CompletableFuture<Optional<User>>> batch) {
+        batchSize.record(batch.size());
+        try {
+            List<User> users = userRepository.findByUsernameIn(batch.keySet());
+            Map<String, User> byUsername = new HashMap<>();
+            for (User user : users) {
+                byUsername.put(user.getUsername(), user);
+            }
+            
+            done(batch);
+            for (Map.Entry<String, CompletableFuture<Optional<User>>> entry : batch.entrySet()) {
+                entry.getValue().complete(Optional.ofNullable(byUsername.get(entry.getKey())));
+            }
+            logger.debug("Loaded {} of {} user(s) in one query", users.size(), batch.size());
+        } catch (RuntimeException e) {
+            logger.error("Failed to load {} user(s)", batch.size(), e);
+            done(batch);
+            for (CompletableFuture<Optional<User>> future : batch.values()) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+    
+    // Later lookups of these usernames must start a new query rather than join a finished one
+    private void done(Map<String, CompletableFuture<Optional<User>>> batch) {
+        synchronized (lock) {
+            for (Map.Entry<String, CompletableFuture<Optional<User>>> entry : batch.entrySet()) {
+                inFlight.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -12,6 +12,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
@@ -29,10 +30,17 @@ public class UserService {
     private static final Logger logger = LoggerFactory.getLogger(UserService.class);
     
     private final UserRepository userRepository;
+    private final CredentialCache credentialCache;
+    private final UsernameFilter usernameFilter;
+    private final LastLoginTracker lastLoginTracker;
     
     @Autowired
-    public UserService(UserRepository userRepository) {
+    public UserService(UserRepository userRepository, CredentialCache credentialCache,
+                       UsernameFilter usernameFilter, LastLoginTracker lastLoginTracker) {
         this.userRepository = userRepository;
+        this.credentialCache = credentialCache;
+        this.usernameFilter = usernameFilter;
+        this.lastLoginTracker = lastLoginTracker;
     }
     
     /**
@@ -54,6 +62,8 @@ public class UserService {
         
         // Save user
         User savedUser = userRepository.save(user);
+        usernameFilter.add(savedUser.getUsername());
+        credentialCache.invalidate(savedUser.getUsername());
         
         logger.info("Successfully created user with ID: {}", savedUser.getId());
         return UserResponse.fromUser(savedUser);
@@ -114,6 +124,11 @@ public class UserService {
             throw TurnException.badRequest("Username already exists: " + request.getUsername());
         }
         
+        // Drop the cached credentials under both the old and the new username
+        credentialCache.invalidate(user.getUsername());
+        credentialCache.invalidate(request.getUsername());
+        usernameFilter.add(request.getUsername());
+        
         // Update user fields
         user.setUsername(request.getUsername());
         if (request.getPassword() != null && !request.getPassword().isEmpty()) {
@@ -135,11 +150,11 @@ public class UserService {
     public void deleteUser(Long id) {
         logger.info("Deleting user with ID: {}", id);
         
-        if (!userRepository.existsById(id)) {
-            throw TurnException.badRequest("User not found with ID: " + id);
-        }
+        User user = userRepository.findById(id)
+                .orElseThrow(() -> TurnException.badRequest("User not found with ID: " + id));
         
-        userRepository.deleteById(id);
+        userRepository.delete(user);
+        credentialCache.invalidate(user.getUsername());
         logger.info("Successfully deleted user with ID: {}", id);
     }
     
@@ -154,22 +169,19 @@ public class UserService {
         
         user.setEnabled(enabled);
         User savedUser = userRepository.save(user);
+        credentialCache.invalidate(savedUser.getUsername());
         
         logger.info("Successfully updated enabled status for user with ID: {}", savedUser.getId());
         return UserResponse.fromUser(savedUser);
     }
     
     /**
-     * Update user's last login time
+     * Update user's last login time. The time is written by the next last login flush, so
+     * this never touches the database.
      */
+    @Transactional(propagation = Propagation.SUPPORTS)
     public void updateLastLogin(String username) {
-        Optional<User> userOpt = userRepository.findByUsername(username);
-        if (userOpt.isPresent()) {
-            User user = userOpt.get();
-            user.setLastLogin(LocalDateTime.now());
-            userRepository.save(user);
-            logger.debug("Updated last login for user: {}", username);
-        }
+        lastLoginTracker.record(username);
     }
     
     /**
@@ -210,12 +222,4 @@ public class UserService {
         Optional<User> userOpt = userRepository.findByUsername(username);
         return userOpt.isPresent() && userOpt.get().getEnabled();
     }
-    
-    /**
-     * Get user entity by username (for internal use)
-     */
-    @Transactional(readOnly = true)
-    public Optional<User> findUserByUsername(String username) {
-        return userRepository.findByUsername(username);
-    }
 }
\ No newline at end of file
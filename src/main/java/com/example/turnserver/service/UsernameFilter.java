@@ -0,0 +1,152 @@
+package com.example.turnserver.service;
+
+import com.example.turnserver.repository.UserRepository;
+import com.example.turnserver.util.BloomFilter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+
+/**
+ * Bloom filter of the usernames in the users table, so that requests for usernames that
+ * definitely do not exist are rejected without a database query.
+ *
+ * The filter is built once the database is initialized and every username UserService
+ * creates or renames is added to it. Deleted usernames stay in the filter as false positives
+ * until it is rebuilt, which happens whenever it outgrows its capacity. Until the first build
+ * every username passes.
+ */
+@Service
+@Order(2)
+public class UsernameFilter implements ApplicationRunner {
+    
+    private static final Logger logger = LoggerFactory.getLogger(UsernameFilter.class);
+    
+    private static final int MIN_CAPACITY = 1024;
+    
+    private final UserRepository userRepository;
+    private final boolean enabled;
+    private final double falsePositiveRate;
+    
+    private volatile BloomFilter filter;
+    private long capacity;
+    private long insertions;
+    
+    private final Counter rejections;
+    private final Counter falsePositives;
+    
+    @Autowired
+    public UsernameFilter(UserRepository userRepository,
+                          MeterRegistry meterRegistry,
+                          @Value("${turn.server.username-filter.enabled:true}") boolean enabled,
+                          @Value("${turn.server.username-filter.false-positive-rate:0.01}") double falsePositiveRate) {
+        this.userRepository = userRepository;
+        this.enabled = enabled;
+        this.falsePositiveRate = falsePositiveRate;
+        
+        this.rejections = Counter.builder("turn.auth.username.filter.rejections")
+                .description("Unknown usernames rejected without a database query")
+                .register(meterRegistry);
+        this.falsePositives = Counter.builder("turn.auth.username.filter.false.positives")
+                .description("Unknown usernames the filter let through to the database")
+                .register(meterRegistry);
+        Gauge.builder("turn.auth.username.filter.expected.false.positive.rate", this,
+                      UsernameFilter::expectedFalsePositiveRate)
+                .description("False positive rate estimated from the filter fill ratio")
+                .register(meterRegistry);
+    }
+    
+    @Override
+    public void run(ApplicationArguments args) {
+        if (enabled) {
+            rebuild();
+        }
+    }
+    
+    /**
+     * Check whether a username may exist
+     *
+     * @return false if the username is definitely not in the users table
+     */
+    public boolean mightExist(String username) {
+        BloomFilter current = filter;
+        if (current == null || current.mightContain(username)) {
+            return true;
+        }
+        rejections.increment();
+        return false;
+    }
+    
+    /**
+     * Record that a username the filter let through was not found in the database
+     */
+    public void recordFalsePositive() {
+        if (filter != null) {
+            falsePositives.increment();
+        }
+    }
+    
+    /**
+     * Add a username now and again once the current transaction, if any, has committed,
+     * so that a concurrent rebuild from the database cannot drop it
+     */
+    public void add(String username) {
+        if (!enabled) {
+            return;
+        }
+        
+        put(username);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    put(username);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Rebuild the filter from the users table
+     */
+    public synchronized void rebuild() {
+        List<String> usernames = userRepository.findAllUsernames();
+        long newCapacity = Math.max(MIN_CAPACITY, 2L * usernames.size());
+        BloomFilter rebuilt = new BloomFilter(newCapacity, falsePositiveRate);
+        for (String username : usernames) {
+            rebuilt.put(username);
+        }
+        
+        capacity = newCapacity;
+        insertions = usernames.size();
+        filter = rebuilt;
+        logger.info("Built username filter with {} username(s), capacity {}", usernames.size(), newCapacity);
+    }
+    
+    private synchronized void put(String username) {
+        if (filter == null) {
+            return;
+        }
+        
+        filter.put(username);
+        if (++insertions > capacity) {
+            rebuild();
+        }
+    }
+    
+    private double expectedFalsePositiveRate() {
+        BloomFilter current = filter;
+        return current != null ? current.expectedFalsePositiveRate() : 0.0;
+    }
+}
\ No newline at end of file
@@ -1,8 +1,10 @@
 package com.example.turnserver.util;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
@@ -17,6 +19,8 @@ public class CryptoUtils {
     private static final SecureRandom RANDOM = new SecureRandom();
     private static final String AES_ALGORITHM = "AES";
     private static final String AES_TRANSFORMATION = "AES/ECB/PKCS5Padding";
+    private static final String AES_GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_LENGTH_BITS = 128;
     
     /**
      * Convert byte array to hexadecimal string
@@ -153,6 +157,39 @@ public class CryptoUtils {
         }
     }
     
+    /**
+     * Encrypt data using AES-GCM; the result is the ciphertext followed by the 16-byte tag
+     */
+    public static byte[] encryptAESGCM(byte[] data, SecretKey key, byte[] iv, byte[] associatedData) {
+        try {
+            Cipher cipher = Cipher.getInstance(AES_GCM_TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
+            cipher.updateAAD(associatedData);
+            return cipher.doFinal(data);
+        } catch (Exception e) {
+            throw new RuntimeException("Error encrypting data", e);
+        }
+    }
+    
+    /**
+     * Decrypt and authenticate AES-GCM data, the ciphertext followed by the 16-byte tag
+     *
+     * @return the plaintext, or null if the data fails authentication
+     */
+    public static byte[] decryptAESGCM(byte[] encryptedData, int offset, int length, SecretKey key,
+                                       byte[] iv, byte[] associatedData) {
+        try {
+            Cipher cipher = Cipher.getInstance(AES_GCM_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
+            cipher.updateAAD(associatedData);
+            return cipher.doFinal(encryptedData, offset, length);
+        } catch (AEADBadTagException e) {
+            return null;
+        } catch (Exception e) {
+            throw new RuntimeException("Error decrypting data", e);
+        }
+    }
+    
     /**
      * Encrypt string using AES
      */
@@ -1,36 +1,103 @@
 package com.example.turnserver.util;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
- * HMAC utility functions for TURN server authentication
+ * HMAC utility functions for TURN server authentication.
+ *
+ * Mac and MessageDigest instances are kept per thread, so the event loops never look up a
+ * provider or build a key spec per packet. HMAC-SHA1 engines are additionally cached by key:
+ * a client whose long-term key has not changed gets back a Mac that is already keyed.
  */
 public class HmacUtils {
     
     private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
     private static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
     private static final String MD5_ALGORITHM = "MD5";
+    private static final String SHA256_ALGORITHM = "SHA-256";
+    
+    private static final int HMAC_SHA1_LENGTH = 20;
+    
+    // Keyed HMAC-SHA1 engines kept per thread
+    private static final int KEYED_MAC_CACHE_SIZE = 16;
     
     private static final SecureRandom RANDOM = new SecureRandom();
     
+    private static final FastThreadLocal<Engines> ENGINES = new FastThreadLocal<Engines>() {
+        @Override
+        protected Engines initialValue() {
+            return new Engines();
+        }
+    };
+    
+    /**
+     * Get the HMAC-SHA1 engine of the calling thread for a key, reset and ready for updates.
+     * The engine must not leave the calling thread and is only valid until the next call.
+     */
+    public static Mac hmacSha1(byte[] key) {
+        return ENGINES.get().hmacSha1(key);
+    }
+    
+    /**
+     * Feed a region of a buffer to a Mac without copying it out
+     */
+    public static void update(Mac mac, ByteBuf buffer, int index, int length) {
+        if (buffer.hasArray()) {
+            mac.update(buffer.array(), buffer.arrayOffset() + index, length);
+        } else if (buffer.nioBufferCount() == 1) {
+            mac.update(buffer.internalNioBuffer(index, length));
+        } else {
+            for (ByteBuffer component : buffer.nioBuffers(index, length)) {
+                mac.update(component);
+            }
+        }
+    }
+    
     /**
      * Calculate HMAC-SHA1
      */
     public static byte[] calculateHmacSha1(byte[] data, byte[] key) {
-        try {
-            Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-            SecretKeySpec secretKeySpec = new SecretKeySpec(key, HMAC_SHA1_ALGORITHM);
-            mac.init(secretKeySpec);
-            return mac.doFinal(data);
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            throw new RuntimeException("Error calculating HMAC-SHA1", e);
-        }
+        return hmacSha1(key).doFinal(data);
+    }
+    
+    /**
+     * Calculate HMAC-SHA1 over the remaining bytes of a ByteBuffer
+     */
+    public static byte[] calculateHmacSha1(ByteBuffer data, byte[] key) {
+        Mac mac = hmacSha1(key);
+        mac.update(data);
+        return mac.doFinal();
+    }
+    
+    /**
+     * Calculate HMAC-SHA1 over a region of a buffer without copying it out
+     */
+    public static byte[] calculateHmacSha1(ByteBuf buffer, int index, int length, byte[] key) {
+        Mac mac = hmacSha1(key);
+        update(mac, buffer, index, length);
+        return mac.doFinal();
+    }
+    
+    /**
+     * Append the HMAC-SHA1 of a region of a buffer to the buffer itself
+     */
+    public static void writeHmacSha1(ByteBuf buffer, int index, int length, byte[] key) {
+        Engines engines = ENGINES.get();
+        Mac mac = engines.hmacSha1(key);
+        update(mac, buffer, index, length);
+        buffer.writeBytes(engines.doFinal(mac));
     }
     
     /**
@@ -46,11 +113,10 @@ public class HmacUtils {
      */
     public static byte[] calculateHmacSha256(byte[] data, byte[] key) {
         try {
-            Mac mac = Mac.getInstance(HMAC_SHA256_ALGORITHM);
-            SecretKeySpec secretKeySpec = new SecretKeySpec(key, HMAC_SHA256_ALGORITHM);
-            mac.init(secretKeySpec);
+            Mac mac = ENGINES.get().hmacSha256;
+            mac.init(new SecretKeySpec(key, HMAC_SHA256_ALGORITHM));
             return mac.doFinal(data);
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+        } catch (InvalidKeyException e) {
             throw new RuntimeException("Error calculating HMAC-SHA256", e);
         }
     }
@@ -68,13 +134,21 @@ public class HmacUtils {
      * MD5(username:realm:password)
      */
     public static byte[] calculateMd5Hash(String username, String realm, String password) {
-        try {
-            String input = username + ":" + realm + ":" + password;
-            MessageDigest md = MessageDigest.getInstance(MD5_ALGORITHM);
-            return md.digest(input.getBytes(StandardCharsets.UTF_8));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("MD5 algorithm not available", e);
-        }
+        MessageDigest md = ENGINES.get().md5;
+        md.reset();
+        md.update(username.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) ':');
+        md.update(realm.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) ':');
+        md.update(password.getBytes(StandardCharsets.UTF_8));
+        return md.digest();
+    }
+    
+    /**
+     * Calculate SHA-256 hash
+     */
+    public static byte[] calculateSha256(byte[] data) {
+        return ENGINES.get().sha256.digest(data);
     }
     
     /**
@@ -136,38 +210,47 @@ public class HmacUtils {
     }
     
     /**
-     * Create STUN MESSAGE-INTEGRITY attribute value
-     * This is HMAC-SHA1 of the STUN message up to but not including the MESSAGE-INTEGRITY attribute
+     * Verify the STUN MESSAGE-INTEGRITY attribute of a received message in place.
+     * The HMAC-SHA1 covers the message up to the MESSAGE-INTEGRITY attribute, with the header
+     * length field replaced by the length up to and including MESSAGE-INTEGRITY, so attributes
+     * after it such as FINGERPRINT are excluded (RFC 5389 section 15.4).
+     *
+     * @param start index of the message header
+     * @param integrityIndex index of the MESSAGE-INTEGRITY attribute header
      */
-    public static byte[] createStunMessageIntegrity(byte[] stunMessage, byte[] key) {
-        return calculateHmacSha1(stunMessage, key);
-    }
-    
-    /**
-     * Verify STUN MESSAGE-INTEGRITY attribute
-     */
-    public static boolean verifyStunMessageIntegrity(byte[] stunMessage, byte[] key, byte[] messageIntegrity) {
-        byte[] calculatedIntegrity = createStunMessageIntegrity(stunMessage, key);
-        return constantTimeEquals(calculatedIntegrity, messageIntegrity);
+    public static boolean verifyStunMessageIntegrity(ByteBuf buffer, int start, int integrityIndex, byte[] key) {
+        int adjustedLength = integrityIndex - start - 20 + 24;
+        Engines engines = ENGINES.get();
+        Mac mac = engines.hmacSha1(key);
+        mac.update(buffer.getByte(start));
+        mac.update(buffer.getByte(start + 1));
+        mac.update((byte) (adjustedLength >>> 8));
+        mac.update((byte) adjustedLength);
+        update(mac, buffer, start + 4, integrityIndex - start - 4);
+        byte[] calculated = engines.doFinal(mac);
+        
+        int result = buffer.getUnsignedShort(integrityIndex + 2) ^ calculated.length;
+        for (int i = 0; i < calculated.length; i++) {
+            result |= calculated[i] ^ buffer.getByte(integrityIndex + 4 + i);
+        }
+        return result == 0;
     }
     
     /**
      * Generate short-term credential password for TURN
-     * This is typically a random string or derived from shared secret
+     * TURN REST API: base64(HMAC-SHA1(secret, username))
      */
-    public static String generateShortTermPassword() {
-        byte[] passwordBytes = new byte[20];
-        RANDOM.nextBytes(passwordBytes);
-        return CryptoUtils.bytesToBase64(passwordBytes);
+    public static String generateShortTermPassword(String username, String secret) {
+        return CryptoUtils.bytesToBase64(calculateHmacSha1(username, secret));
     }
     
     /**
      * Generate username for short-term credentials
-     * Format: timestamp:username
+     * Format: expiry:username, with the expiry as a Unix timestamp
      */
-    public static String generateShortTermUsername(String baseUsername) {
-        long timestamp = System.currentTimeMillis() / 1000; // Unix timestamp
-        return timestamp + ":" + baseUsername;
+    public static String generateShortTermUsername(String baseUsername, long lifetimeSeconds) {
+        long expiry = System.currentTimeMillis() / 1000 + lifetimeSeconds; // Unix timestamp
+        return expiry + ":" + baseUsername;
     }
     
     /**
@@ -189,13 +272,96 @@ public class HmacUtils {
     /**
      * Check if short-term credential is expired
      */
-    public static boolean isShortTermCredentialExpired(String username, long maxAgeSeconds) {
-        long timestamp = parseTimestampFromUsername(username);
-        if (timestamp == -1) {
+    public static boolean isShortTermCredentialExpired(String username) {
+        long expiry = parseTimestampFromUsername(username);
+        if (expiry == -1) {
             return true;
         }
         
         long currentTime = System.currentTimeMillis() / 1000;
-        return (currentTime - timestamp) > maxAgeSeconds;
+        return currentTime >= expiry;
+    }
+    
+    /**
+     * Crypto engines of one thread
+     */
+    private static final class Engines {
+        
+        final Mac hmacSha256 = newMac(HMAC_SHA256_ALGORITHM);
+        final MessageDigest md5 = newMessageDigest(MD5_ALGORITHM);
+        final MessageDigest sha256 = newMessageDigest(SHA256_ALGORITHM);
+        
+        // Output scratch for HMACs that are consumed before the next call
+        private final byte[] hmacSha1Output = new byte[HMAC_SHA1_LENGTH];
+        
+        // Keyed HMAC-SHA1 engines; keys are copies so callers cannot rekey an engine behind our back
+        private final byte[][] keys = new byte[KEYED_MAC_CACHE_SIZE][];
+        private final Mac[] macs = new Mac[KEYED_MAC_CACHE_SIZE];
+        private int lastUsed;
+        private int nextVictim;
+        
+        Mac hmacSha1(byte[] key) {
+            if (Arrays.equals(keys[lastUsed], key)) {
+                return reset(macs[lastUsed]);
+            }
+            for (int i = 0; i < KEYED_MAC_CACHE_SIZE; i++) {
+                if (Arrays.equals(keys[i], key)) {
+                    lastUsed = i;
+                    return reset(macs[i]);
+                }
+            }
+            
+            // Miss: rekey the engines round-robin
+            int slot = nextVictim;
+            nextVictim = (nextVictim + 1) % KEYED_MAC_CACHE_SIZE;
+            Mac mac = macs[slot];
+            if (mac == null) {
+                mac = newMac(HMAC_SHA1_ALGORITHM);
+                macs[slot] = mac;
+            }
+            keys[slot] = null;
+            try {
+                mac.init(new SecretKeySpec(key, HMAC_SHA1_ALGORITHM));
+            } catch (InvalidKeyException e) {
+                throw new RuntimeException("Error calculating HMAC-SHA1", e);
+            }
+            keys[slot] = key.clone();
+            lastUsed = slot;
+            return mac;
+        }
+        
+        /**
+         * Finish an HMAC-SHA1 into the thread's output scratch
+         */
+        byte[] doFinal(Mac mac) {
+            try {
+                mac.doFinal(hmacSha1Output, 0);
+                return hmacSha1Output;
+            } catch (ShortBufferException e) {
+                throw new RuntimeException("Error calculating HMAC-SHA1", e);
+            }
+        }
+        
+        // A previous caller may have failed half way through an update
+        private static Mac reset(Mac mac) {
+            mac.reset();
+            return mac;
+        }
+        
+        private static Mac newMac(String algorithm) {
+            try {
+                return Mac.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(algorithm + " algorithm not available", e);
+            }
+        }
+        
+        private static MessageDigest newMessageDigest(String algorithm) {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(algorithm + " algorithm not available", e);
+            }
+        }
     }
 }
\ No newline at end of file
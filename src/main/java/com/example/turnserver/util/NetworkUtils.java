@@ -1,5 +1,6 @@
 package com.example.turnserver.util;
 
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
@@ -172,6 +173,30 @@ public class NetworkUtils {
         return false;
     }
     
+    /**
+     * Get an IPv4 address as an int in network byte order, or 0 for other address families.
+     * Inet4Address.hashCode() is the address itself, which avoids the array copy of getAddress()
+     * on the packet path.
+     */
+    public static int ipv4ToInt(InetAddress address) {
+        return address instanceof Inet4Address ? address.hashCode() : 0;
+    }
+    
+    /**
+     * Convert an IPv4 address in network byte order back into an InetAddress
+     */
+    public static InetAddress intToIpv4(int address) {
+        byte[] addrBytes = {
+            (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address
+        };
+        try {
+            return InetAddress.getByAddress(addrBytes);
+        } catch (UnknownHostException e) {
+            // Cannot happen for a 4-byte address
+            throw new IllegalArgumentException(e);
+        }
+    }
+    
     /**
      * Check if an IP address is loopback
      */